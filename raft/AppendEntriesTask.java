@@ -1,16 +1,24 @@
 package raft;
 
 import remote.RemoteObjectException;
-import remote.StubFactory;
+import remote.TrafficClass;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 public class AppendEntriesTask extends Thread {
+    // pause before retrying a follower that could not be reached
+    static final int PROBE_RETRY_INTERVAL = 10;
+    // pause between InstallSnapshot calls while the follower fetches the snapshot
+    static final int SNAPSHOT_POLL_INTERVAL = RaftPeer.HEARTBEAT_INTERVAL / 2;
+
     private RaftPeer node;
-    private int followerId;
+    final int followerId;
     private volatile boolean shutdown = false;
+    private volatile HashedWheelTimer.Timeout lifetime;
+    // snapshot bytes the follower had fetched at the last InstallSnapshot call
+    private long snapshotReceived = -1;
 
     public AppendEntriesTask(RaftPeer node, int followerId) {
         this.node = node;
@@ -19,36 +27,134 @@ public class AppendEntriesTask extends Thread {
 
     @Override
     public void run() {
+        try {
+            replicate();
+        } finally {
+            // also reached when the loop dies of an unchecked exception, e.g. a corrupt log record,
+            // so that replicateTo starts a new task instead of extending this one
+            shutdown = true;
+            node.replicatorExited(this);
+            node.updateCommitIndex();
+        }
+    }
+
+    /**
+     * send batches, or the snapshot, to the follower until it holds the whole log or the task is shut down
+     */
+    private void replicate() {
+        FollowerProgress progress = node.getProgress(followerId);
         while (!shutdown && node.getCurrentRole() == RaftRole.LEADER) {
             try {
-                int prevLogIndex = node.getNextIndex()[followerId] - 1;
-                int prevLogTerm = prevLogIndex == 0 ? 0 : node.getLogs().get(prevLogIndex - 1).term;
-                String peerAddr = node.getPeerPort(followerId);
-                RaftInterface peer = StubFactory.create(RaftInterface.class, peerAddr);
+                int prevLogIndex = node.getNextIndex(followerId) - 1;
+                RaftInterface peer = node.getPeerStub(followerId, TrafficClass.BULK);
+                // the entries the follower needs were compacted away, so it gets the snapshot instead
+                if (node.needsSnapshot(prevLogIndex)) {
+                    if (!sendSnapshot(peer)) {
+                        Thread.sleep(SNAPSHOT_POLL_INTERVAL);
+                    }
+                    continue;
+                }
+                int prevLogTerm = node.getLogTerm(prevLogIndex);
+                // while probing for the match point the entries are left out, see FollowerProgress
+                List<RaftLog> entries = EntryBatch.wrap(node.getEntriesToAppend(
+                        prevLogIndex, progress.maxEntries(), progress.maxBytes()));
+                long start = System.nanoTime();
                 AppendEntriesResp resp = peer.AppendEntries(
                         node.getCurrentTerm(),
                         node.nodeId,
                         prevLogIndex,
                         prevLogTerm,
-                        node.getEntriesToAppend(prevLogIndex),
+                        entries,
                         node.getCommitIndex()
                 );
-                node.callCount++;
+                long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+                node.increaseRpcCallCount();
                 if (resp != null) {
                     if (resp.getTerm() > node.getCurrentTerm()) {
                         node.toFollower(resp.getTerm());
                     } else {
+                        node.recordReplicationContact(followerId);
                         node.updateNextIndexAndMatchIndex(followerId, resp.getAck(), resp.isSuccess());
-                        if (resp.isSuccess()) {
-                            shutdown();
+                        // batches are capped, so keep going until the follower has the whole log,
+                        // extending the task's lifetime for as long as each batch is accepted
+                        if (!resp.isSuccess()) {
+                            progress.onReject();
+                        } else {
+                            progress.onSuccess(entries.size(), elapsedMs);
+                            node.updateCommitIndex();
+                            if (!node.finishReplication(this, resp.getAck()) && lifetime != null) {
+                                lifetime.reset();
+                            }
                         }
                     }
                 }
             } catch (RemoteObjectException e) {
-
+                progress.onReject();
+                try {
+                    Thread.sleep(PROBE_RETRY_INTERVAL);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                break;
             }
         }
-        node.updateCommitIndex();
+    }
+
+    /**
+     * one InstallSnapshot call: the follower starts or goes on fetching the leader's snapshot over
+     * its own connection, and once it has installed it, replication carries on after the snapshot.
+     * the task stays alive for as long as the fetch makes progress
+     *
+     * @param peer  stub of the follower
+     * @return true if the follower has installed the snapshot
+     */
+    private boolean sendSnapshot(RaftInterface peer) throws RemoteObjectException {
+        WriteAheadLog.Snapshot snapshot = node.getSnapshot();
+        InstallSnapshotResp resp = peer.InstallSnapshot(
+                node.getCurrentTerm(),
+                node.nodeId,
+                snapshot.index,
+                snapshot.term,
+                node.getSnapshotSource()
+        );
+        node.increaseRpcCallCount();
+        if (resp == null) return false;
+        if (resp.getTerm() > node.getCurrentTerm()) {
+            node.toFollower(resp.getTerm());
+            return false;
+        }
+        node.recordReplicationContact(followerId);
+        if (resp.isDone()) {
+            node.updateNextIndexAndMatchIndex(followerId, snapshot.index, true);
+        }
+        if ((resp.isDone() || resp.getReceived() > snapshotReceived) && lifetime != null) {
+            lifetime.reset();
+        }
+        snapshotReceived = resp.getReceived();
+        return resp.isDone();
+    }
+
+    /**
+     * keep a running task alive for entries appended after it started, see RaftPeer.replicateTo
+     *
+     * @return false if the task is shutting down or has exited, so a new one must be started
+     */
+    boolean extend() {
+        if (shutdown || !isAlive()) {
+            return false;
+        }
+        if (lifetime != null) {
+            lifetime.reset();
+        }
+        return true;
+    }
+
+    /**
+     * @param lifetime  the timeout that shuts this task down, pushed back whenever a batch succeeds
+     */
+    void setLifetime(HashedWheelTimer.Timeout lifetime) {
+        this.lifetime = lifetime;
     }
 
     public void shutdown() {
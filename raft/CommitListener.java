@@ -0,0 +1,23 @@
+package raft;
+
+import remote.RemoteObjectException;
+
+import java.util.List;
+
+/**
+ * CommitListener receives the entries of a CommitSubscription as they are committed.  the method
+ * throws RemoteObjectException so that a stub from StubFactory can be subscribed as well, pushing
+ * entries to a consumer in another process.
+ */
+public interface CommitListener {
+    /**
+     * called on the subscription's delivery thread with the next committed entries, in log order
+     * and without gaps; if it throws, the subscription is closed.  if entries the listener has yet
+     * to get are gone from the log, e.g. once the peer installs a leader's snapshot past them, the
+     * subscription is closed as overrun rather than skipping them, see CommitSubscription.isOverrun
+     *
+     * @param entries   one or more committed entries
+     * @throws RemoteObjectException if the consumer cannot take the entries
+     */
+    public void onCommitted(List<RaftLog> entries) throws RemoteObjectException;
+}
@@ -0,0 +1,191 @@
+package raft;
+
+import remote.RemoteObjectException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CommitSubscription pushes a RaftPeer's committed entries to a CommitListener, starting from a
+ * given index
+ *  -- when commitIndex advances, the peer offers the new entries to the subscription's bounded
+ *     buffer without blocking; a dedicated delivery thread drains the buffer to the listener
+ *  -- if the buffer is full the subscription is paused and stops taking entries, so a slow listener
+ *     never holds up commitment or the applier; once the listener has drained the buffer, the
+ *     delivery thread refills it from the log and resumes
+ *  -- the log is not compacted past an entry the subscription has yet to buffer, so a paused
+ *     subscription loses nothing.  only a follower that installs a leader's snapshot drops such
+ *     entries, and the subscription is then closed as overrun, so its listener never sees a gap
+ *  -- a subscription that falls more than `raft.maxSubscriptionLag` entries behind a snapshot no
+ *     longer holds the log back: it is closed as overrun, and its listener must start over from
+ *     state it gets elsewhere, as the entries it missed are compacted away
+ */
+public class CommitSubscription {
+    // how long the delivery thread waits for entries before checking whether it was paused or closed
+    private static final int POLL_INTERVAL = 100;
+
+    private final RaftPeer node;
+    private final CommitListener listener;
+    private final ArrayBlockingQueue<RaftLog> buffer;
+    private final Thread delivery;
+    // next index to put in the buffer; guarded by the node's monitor, like commitIndex
+    private int nextToBuffer;
+    private volatile boolean paused;
+    private volatile boolean closed;
+    private volatile boolean overrun;
+    private volatile int deliveredIndex;
+    private volatile int pauseCount;
+
+    /**
+     * created by RaftPeer.subscribe
+     *
+     * @param node          the peer whose commits are watched
+     * @param fromIndex     index of the first entry to deliver, at least 1
+     * @param bufferLimit   number of entries buffered for the listener before the subscription pauses
+     * @param listener      receiver of the committed entries
+     */
+    CommitSubscription(RaftPeer node, int fromIndex, int bufferLimit, CommitListener listener) {
+        this.node = node;
+        this.listener = listener;
+        this.buffer = new ArrayBlockingQueue<>(bufferLimit);
+        this.nextToBuffer = Math.max(fromIndex, 1);
+        this.deliveredIndex = nextToBuffer - 1;
+        // start paused, so the delivery thread catches up on past commits from the log
+        this.paused = true;
+        this.closed = false;
+        this.delivery = new Thread(this::deliver, "raft-watch-" + node.port);
+        this.delivery.setDaemon(true);
+    }
+
+    void start() {
+        delivery.start();
+    }
+
+    /**
+     * offer newly committed entries to the buffer; called by the peer, holding its monitor, whenever
+     * commitIndex advances, so it must never block
+     *
+     * @param commitIndex   the new commit index
+     */
+    void publish(int commitIndex) {
+        if (paused || closed) return;
+        if (isBehindLog()) return;
+        while (nextToBuffer <= commitIndex) {
+            if (!buffer.offer(node.entryAt(nextToBuffer))) {
+                paused = true;
+                pauseCount++;
+                return;
+            }
+            nextToBuffer++;
+        }
+    }
+
+    private void deliver() {
+        List<RaftLog> batch = new ArrayList<>();
+        while (!closed) {
+            if (paused && buffer.isEmpty()) {
+                refill();
+            }
+            try {
+                RaftLog first = buffer.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+            } catch (InterruptedException e) {
+                break;
+            }
+            buffer.drainTo(batch);
+            try {
+                listener.onCommitted(batch);
+            } catch (RemoteObjectException | RuntimeException e) {
+                close();
+                break;
+            }
+            deliveredIndex = batch.get(batch.size() - 1).index;
+            batch = new ArrayList<>();
+        }
+    }
+
+    private void refill() {
+        synchronized (node) {
+            int commitIndex = node.getCommitIndex();
+            if (isBehindLog()) return;
+            while (nextToBuffer <= commitIndex && buffer.offer(node.entryAt(nextToBuffer))) {
+                nextToBuffer++;
+            }
+            // caught up: from here on publish() keeps the buffer filled
+            if (nextToBuffer > commitIndex) {
+                paused = false;
+            }
+        }
+    }
+
+    // holding the node's monitor: close as overrun if the next entry to buffer is no longer in the
+    // log, as skipping to the first one that is would leave a gap
+    private boolean isBehindLog() {
+        if (nextToBuffer >= node.firstLogIndex()) return false;
+        overrun();
+        return true;
+    }
+
+    /**
+     * @return index of the next entry to buffer, so the log is kept from there on; called holding the
+     *         node's monitor
+     */
+    int getNextToBuffer() {
+        return nextToBuffer;
+    }
+
+    /**
+     * stop delivering entries; entries still in the buffer are dropped
+     */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        node.unsubscribe(this);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * called holding the peer's monitor when the log no longer holds entries this subscription has
+     * yet to buffer: the peer compacted past it, or installed a snapshot past it
+     */
+    void overrun() {
+        overrun = true;
+        close();
+    }
+
+    /**
+     * @return true if the subscription was closed because the entries it had yet to deliver left
+     *         the log, as it fell too far behind (see RaftPeer.MAX_SUBSCRIPTION_LAG) or the peer
+     *         installed a snapshot; entries after getDeliveredIndex may be lost
+     */
+    public boolean isOverrun() {
+        return overrun;
+    }
+
+    /**
+     * @return true while the buffer is full or being refilled from the log
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * @return number of times the subscription paused because its buffer was full
+     */
+    public int getPauseCount() {
+        return pauseCount;
+    }
+
+    /**
+     * @return index of the last entry handed to the listener
+     */
+    public int getDeliveredIndex() {
+        return deliveredIndex;
+    }
+}
@@ -1,7 +1,9 @@
 package raft;
 
 import remote.RemoteObjectException;
-import remote.StubFactory;
+import remote.TrafficClass;
+
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ElectionTask implements Runnable {
 
@@ -19,38 +21,48 @@ public class ElectionTask implements Runnable {
             // become candidate
             node.toCandidate();
             // start leader election
-            int votesReceived = 1;
+            int electionTerm = node.getCurrentTerm();
+            int majority = node.numOfPeers / 2 + 1;
+            if (majority == 1) {
+                // a single-peer group elects itself
+                node.winElection(electionTerm);
+                return;
+            }
+            // the votes are requested in parallel on the timer's rpc pool, and this timer worker
+            // returns at once; the round is decided by whichever reply completes the majority
+            AtomicInteger votesReceived = new AtomicInteger(1);
             RaftLog lastLog = node.getLastLog();
             for (int raftPeerId = 0; raftPeerId < node.numOfPeers; raftPeerId++) {
-                try {
-                    if (raftPeerId == node.nodeId) continue;
-                    String peerAddr = node.getPeerPort(raftPeerId);
-                    RaftInterface peer = StubFactory.create(RaftInterface.class, peerAddr);
-                    RequestVoteResp resp = peer.RequestVote(
-                            node.getCurrentTerm(),
-                            node.getVotedFor(),
-                            lastLog.index,
-                            lastLog.term);
-                    node.increaseRpcCallCount();
-                    if (resp != null) {
-                        if (node.getCurrentRole() == RaftRole.CANDIDATE &&
-                                node.getCurrentTerm() == resp.getTerm() &&
-                                resp.isGranted())
-                        {
-                            votesReceived++;
-                            if (votesReceived >= (node.numOfPeers + 1) / 2) {
-                                node.toLeader();
-                                break;
-                            }
-                        } else if (resp.getTerm() > node.getCurrentTerm()) {
-                            node.toFollower(resp.getTerm());
-                            break;
-                        }
-                    }
-                } catch (RemoteObjectException e) {
-//                    System.out.println("error in election taks: " + e.getMessage());
+                if (raftPeerId == node.nodeId) continue;
+                int peerId = raftPeerId;
+                node.getTimer().executeBlocking(
+                        () -> requestVote(peerId, electionTerm, lastLog, votesReceived, majority));
+            }
+        }
+    }
+
+    private void requestVote(int raftPeerId, int electionTerm, RaftLog lastLog,
+                             AtomicInteger votesReceived, int majority) {
+        // a later round or a new leader has made this round moot
+        if (node.getCurrentRole() != RaftRole.CANDIDATE || node.getCurrentTerm() != electionTerm) return;
+        try {
+            RaftInterface peer = node.getPeerStub(raftPeerId, TrafficClass.CONTROL);
+            RequestVoteResp resp = peer.RequestVote(
+                    electionTerm,
+                    node.nodeId,
+                    lastLog.index,
+                    lastLog.term);
+            node.increaseRpcCallCount();
+            if (resp != null) {
+                if (resp.getTerm() > node.getCurrentTerm()) {
+                    node.toFollower(resp.getTerm());
+                } else if (resp.getTerm() == electionTerm && resp.isGranted() &&
+                        votesReceived.incrementAndGet() == majority) {
+                    node.winElection(electionTerm);
                 }
             }
+        } catch (RemoteObjectException e) {
+//            System.out.println("error in election taks: " + e.getMessage());
         }
     }
 }
@@ -0,0 +1,206 @@
+package raft;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * EntryBatch is the entry list of an AppendEntries call in a compact serialized form, used when
+ * `raft.compressEntries` is set; it is an ordinary List<RaftLog> on both ends, so the RPC is unchanged
+ *  -- the entries of a batch are consecutive, so only the first index is sent
+ *  -- terms are run-length encoded, as a catch-up batch is usually one or a few long runs
+ *  -- msg and data lengths are varints; the data of all entries is sent as one block, deflated
+ *     when it is at least COMPRESS_MIN_BYTES and a deflated sample of it shrinks enough to be
+ *     worth the CPU, which already compressed or encrypted payloads do not
+ * Java serialization of an ArrayList<RaftLog> instead costs a few dozen bytes of object framing per
+ * entry on top of its fields.
+ */
+public class EntryBatch extends AbstractList<RaftLog> implements RandomAccess, Serializable {
+    static final boolean ENABLED = Boolean.getBoolean("raft.compressEntries");
+    static final int COMPRESS_MIN_BYTES = Integer.getInteger("raft.compressMinBytes", 4096);
+    private static final int SAMPLE_BYTES = 4096;
+    // deflate only if the sample shrinks to at most this fraction
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+
+    private transient List<RaftLog> entries;
+
+    /**
+     * @param entries   consecutive entries, in index order
+     */
+    EntryBatch(List<RaftLog> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * @param entries   consecutive entries, in index order
+     * @return `entries` as an EntryBatch if compact batches are enabled, otherwise unchanged
+     */
+    static List<RaftLog> wrap(List<RaftLog> entries) {
+        return ENABLED && !entries.isEmpty() ? new EntryBatch(entries) : entries;
+    }
+
+    @Override
+    public RaftLog get(int i) {
+        return entries.get(i);
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        int n = entries.size();
+        writeVarint(out, n);
+        if (n == 0) return;
+        out.writeInt(entries.get(0).index);
+        // terms as (term, run length) pairs
+        int runStart = 0;
+        for (int i = 1; i <= n; i++) {
+            if (i == n || entries.get(i).term != entries.get(runStart).term) {
+                writeVarint(out, entries.get(runStart).term);
+                writeVarint(out, i - runStart);
+                runStart = i;
+            }
+        }
+        int dataBytes = 0;
+        for (RaftLog entry: entries) {
+            writeVarint(out, entry.msg);
+            // 0 for no data, otherwise length + 1
+            writeVarint(out, entry.data == null ? 0 : entry.data.length + 1);
+            if (entry.data != null) dataBytes += entry.data.length;
+        }
+        byte[] data = new byte[dataBytes];
+        int position = 0;
+        for (RaftLog entry: entries) {
+            if (entry.data == null) continue;
+            System.arraycopy(entry.data, 0, data, position, entry.data.length);
+            position += entry.data.length;
+        }
+        byte[] deflated = dataBytes >= COMPRESS_MIN_BYTES && compressible(data) ? deflate(data, data.length) : null;
+        if (deflated != null && deflated.length < dataBytes) {
+            out.writeBoolean(true);
+            writeVarint(out, deflated.length);
+            out.write(deflated);
+        } else {
+            out.writeBoolean(false);
+            out.write(data);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException {
+        int n = readVarint(in);
+        entries = new ArrayList<>(n);
+        if (n == 0) return;
+        int firstIndex = in.readInt();
+        int[] terms = new int[n];
+        for (int filled = 0; filled < n; ) {
+            int term = readVarint(in);
+            int run = readVarint(in);
+            if (run <= 0 || filled + run > n) {
+                throw new IOException("bad term run in entry batch");
+            }
+            for (int i = 0; i < run; i++) {
+                terms[filled++] = term;
+            }
+        }
+        int[] msgs = new int[n];
+        int[] lengths = new int[n];
+        int dataBytes = 0;
+        for (int i = 0; i < n; i++) {
+            msgs[i] = readVarint(in);
+            lengths[i] = readVarint(in) - 1;
+            if (lengths[i] > 0) dataBytes += lengths[i];
+        }
+        byte[] data = new byte[dataBytes];
+        if (in.readBoolean()) {
+            byte[] deflated = new byte[readVarint(in)];
+            in.readFully(deflated);
+            inflate(deflated, data);
+        } else {
+            in.readFully(data);
+        }
+        int position = 0;
+        for (int i = 0; i < n; i++) {
+            RaftLog entry;
+            if (lengths[i] < 0) {
+                entry = new RaftLog(msgs[i], terms[i], firstIndex + i);
+            } else {
+                byte[] payload = new byte[lengths[i]];
+                System.arraycopy(data, position, payload, 0, payload.length);
+                position += payload.length;
+                entry = new RaftLog(payload, terms[i], firstIndex + i);
+                entry.msg = msgs[i];
+            }
+            entries.add(entry);
+        }
+    }
+
+    private static boolean compressible(byte[] data) {
+        int sample = Math.min(SAMPLE_BYTES, data.length);
+        return deflate(data, sample).length <= sample * MAX_SAMPLE_RATIO;
+    }
+
+    private static byte[] deflate(byte[] data, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void inflate(byte[] deflated, byte[] data) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            int position = 0;
+            while (position < data.length) {
+                int read = inflater.inflate(data, position, data.length - position);
+                if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("truncated entry batch payload");
+                }
+                position += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt entry batch payload", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // unsigned LEB128; msg values are small command numbers, terms and lengths are never negative
+    private static void writeVarint(ObjectOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(ObjectInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("malformed varint in entry batch");
+    }
+}
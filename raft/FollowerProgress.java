@@ -0,0 +1,78 @@
+package raft;
+
+/**
+ * FollowerProgress is the leader's flow control for replicating to one follower
+ *  -- PROBE: the follower's match point is unknown, e.g. after a rejection or a failed call, so
+ *     AppendEntries carries no entries until one succeeds; no log data is shipped, or built, for a
+ *     follower that cannot use it
+ *  -- REPLICATE: the follower matched, so batches are sent up to the current window of entries and
+ *     bytes, which is also the most that is ever in flight to the follower
+ *  -- the window is halved whenever a batch takes longer than SLOW_BATCH_MS to be acknowledged and
+ *     doubled, up to MAX_BATCH_ENTRIES and MAX_BATCH_BYTES, when it takes under half of that, so a
+ *     doubled batch should still be quick; a follower on a slow link or slow to apply gets small
+ *     batches that finish well within an election timeout
+ */
+class FollowerProgress {
+    enum State { PROBE, REPLICATE }
+
+    // a batch acknowledged slower than this shrinks the window
+    static final int SLOW_BATCH_MS = RaftPeer.HEARTBEAT_INTERVAL;
+    static final int MIN_WINDOW_BYTES = 4096;
+    // a new leader starts every window at this fraction of the maximum and lets it grow
+    static final int INITIAL_WINDOW_DIVISOR = 16;
+
+    private State state;
+    private int windowEntries;
+    private long windowBytes;
+
+    FollowerProgress() {
+        reset();
+    }
+
+    /**
+     * start over in PROBE with a small window, e.g. when this peer becomes leader
+     */
+    synchronized void reset() {
+        state = State.PROBE;
+        windowEntries = Math.max(1, RaftPeer.MAX_BATCH_ENTRIES / INITIAL_WINDOW_DIVISOR);
+        windowBytes = Math.max(MIN_WINDOW_BYTES, RaftPeer.MAX_BATCH_BYTES / INITIAL_WINDOW_DIVISOR);
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return most entries the next AppendEntries may carry, 0 while probing
+     */
+    synchronized int maxEntries() {
+        return state == State.PROBE ? 0 : windowEntries;
+    }
+
+    synchronized long maxBytes() {
+        return windowBytes;
+    }
+
+    /**
+     * @param entries   number of entries the acknowledged call carried
+     * @param elapsedMs how long the call took
+     */
+    synchronized void onSuccess(int entries, long elapsedMs) {
+        state = State.REPLICATE;
+        if (entries == 0) return;
+        if (elapsedMs > SLOW_BATCH_MS) {
+            windowEntries = Math.max(1, windowEntries / 2);
+            windowBytes = Math.max(MIN_WINDOW_BYTES, windowBytes / 2);
+        } else if (elapsedMs < SLOW_BATCH_MS / 2) {
+            windowEntries = Math.min(RaftPeer.MAX_BATCH_ENTRIES, windowEntries * 2);
+            windowBytes = Math.min(RaftPeer.MAX_BATCH_BYTES, windowBytes * 2);
+        }
+    }
+
+    /**
+     * the follower's log did not match, or the call failed
+     */
+    synchronized void onReject() {
+        state = State.PROBE;
+    }
+}
@@ -0,0 +1,36 @@
+package raft;
+
+import java.io.Serializable;
+
+/**
+ * GroupHeartbeat is one Raft group's entry in a coalesced heartbeat between two MultiRaftHosts
+ */
+public class GroupHeartbeat implements Serializable {
+    private int groupId;
+    private int term;
+    private int leaderId;
+    private int commitIndex;
+
+    public GroupHeartbeat(int groupId, int term, int leaderId, int commitIndex) {
+        this.groupId = groupId;
+        this.term = term;
+        this.leaderId = leaderId;
+        this.commitIndex = commitIndex;
+    }
+
+    public int getGroupId() {
+        return groupId;
+    }
+
+    public int getTerm() {
+        return term;
+    }
+
+    public int getLeaderId() {
+        return leaderId;
+    }
+
+    public int getCommitIndex() {
+        return commitIndex;
+    }
+}
@@ -0,0 +1,82 @@
+package raft;
+
+import remote.RemoteObjectException;
+
+import java.util.List;
+
+/**
+ * GroupRaftStub adapts a shared MultiRaftInterface stub of a remote node into the RaftInterface of
+ * one Raft group on that node, so hosted RaftPeers and their tasks stay unaware of group routing
+ */
+public class GroupRaftStub implements RaftInterface {
+    private final MultiRaftInterface node;
+    private final int groupId;
+
+    public GroupRaftStub(MultiRaftInterface node, int groupId) {
+        this.node = node;
+        this.groupId = groupId;
+    }
+
+    @Override
+    public RequestVoteResp RequestVote(int candidateTerm,
+                                       int candidateId,
+                                       int candidateLastLogIndex,
+                                       int candidateLastLogTerm)
+            throws RemoteObjectException
+    {
+        return node.RequestVote(groupId, candidateTerm, candidateId, candidateLastLogIndex, candidateLastLogTerm);
+    }
+
+    @Override
+    public AppendEntriesResp AppendEntries(
+            int leaderTerm,
+            int leaderId,
+            int prevLogIndex,
+            int prevLogTerm,
+            List<RaftLog> entries,
+            int leaderCommit) throws RemoteObjectException
+    {
+        return node.AppendEntries(groupId, leaderTerm, leaderId, prevLogIndex, prevLogTerm, entries, leaderCommit);
+    }
+
+    @Override
+    public InstallSnapshotResp InstallSnapshot(
+            int leaderTerm,
+            int leaderId,
+            int lastIncludedIndex,
+            int lastIncludedTerm,
+            String source) throws RemoteObjectException
+    {
+        return node.InstallSnapshot(groupId, leaderTerm, leaderId, lastIncludedIndex, lastIncludedTerm, source);
+    }
+
+    @Override
+    public int GetCommittedCmd(int index) throws RemoteObjectException {
+        return node.GetCommittedCmd(groupId, index);
+    }
+
+    @Override
+    public List<RaftLog> GetCommittedRange(int from, int to) throws RemoteObjectException {
+        return node.GetCommittedRange(groupId, from, to);
+    }
+
+    @Override
+    public int[] GetCommittedCmds(int from, int to) throws RemoteObjectException {
+        return node.GetCommittedCmds(groupId, from, to);
+    }
+
+    @Override
+    public StatusReport GetStatus() throws RemoteObjectException {
+        return node.GetStatus(groupId);
+    }
+
+    @Override
+    public StatusReport NewCommand(int command) throws RemoteObjectException {
+        return node.NewCommand(groupId, command);
+    }
+
+    @Override
+    public IndexRange NewCommands(int[] commands) throws RemoteObjectException {
+        return node.NewCommands(groupId, commands);
+    }
+}
@@ -0,0 +1,236 @@
+package raft;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HashedWheelTimer is a single-threaded timer shared by every Raft peer in the JVM
+ *  -- timeouts are hashed into a ring of buckets by their deadline tick, so scheduling is O(1)
+ *  -- resetting a timeout only moves its deadline; the worker re-buckets it lazily when the old
+ *     bucket comes around, so restarting an election timer is O(1) with no queue churn
+ *  -- expired tasks run on a daemon worker pool with one thread per CPU, so they never delay the
+ *     wheel, and a periodic task is re-armed only after its previous run finishes
+ *  -- tasks that block on remote calls, such as HeartbeatTask or one RequestVote of an ElectionTask,
+ *     or on the disk, such as the ElectionTask of a peer with a write-ahead log, whose new term and
+ *     vote are forced to disk, run on a second bounded pool of `raft.rpcThreads` threads instead,
+ *     so they cannot hold up the election timers of other peers; calls beyond its size wait in its
+ *     queue
+ */
+public class HashedWheelTimer {
+    static final int RPC_THREADS = Integer.getInteger("raft.rpcThreads",
+            Math.max(16, 4 * Runtime.getRuntime().availableProcessors()));
+
+    private static final HashedWheelTimer SHARED = new HashedWheelTimer(10, 512);
+
+    private final long tickNanos;
+    private final List<List<Timeout>> wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> pending;
+    private final ThreadPoolExecutor workers;
+    private final ThreadPoolExecutor rpcWorkers;
+    private final AtomicLong failedRuns;
+    private final long startTime;
+    private final Thread ticker;
+    private long currentTick;
+
+    /**
+     * Constructor for HashedWheelTimer
+     *
+     * @param tickMs        duration of one tick in milliseconds, i.e. the timer resolution
+     * @param wheelSize     number of buckets, rounded up to a power of two
+     */
+    public HashedWheelTimer(int tickMs, int wheelSize) {
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        this.wheel = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            wheel.add(new ArrayList<>());
+        }
+        this.mask = size - 1;
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.workers = newPool("raft-timer-worker-", Runtime.getRuntime().availableProcessors());
+        this.rpcWorkers = newPool("raft-timer-rpc-", RPC_THREADS);
+        this.failedRuns = new AtomicLong();
+        this.startTime = System.nanoTime();
+        this.currentTick = 0;
+        this.ticker = new Thread(this::runWheel, "raft-timer-wheel");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    /**
+     * a fixed-size pool of daemon threads whose idle threads exit, with an unbounded queue
+     */
+    private static ThreadPoolExecutor newPool(String namePrefix, int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, namePrefix + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * @return the timer shared by all Raft peers in this JVM
+     */
+    public static HashedWheelTimer shared() {
+        return SHARED;
+    }
+
+    /**
+     * schedule a task to run after `delayMs`, then every `periodMs` after the previous run completes
+     *
+     * @param task      task to run on the worker pool
+     * @param delayMs   delay before the first run
+     * @param periodMs  delay between the end of one run and the next, or 0 for a one-shot task
+     * @return a handle used to reset or cancel the task
+     */
+    public Timeout schedule(Runnable task, long delayMs, long periodMs) {
+        return schedule(task, delayMs, periodMs, false);
+    }
+
+    /**
+     * schedule a task as above, choosing the pool it runs on
+     *
+     * @param task      task to run
+     * @param delayMs   delay before the first run
+     * @param periodMs  delay between the end of one run and the next, or 0 for a one-shot task
+     * @param blocking  true if the task makes remote calls or waits on the disk, so it runs on the
+     *                  rpc pool
+     * @return a handle used to reset or cancel the task
+     */
+    public Timeout schedule(Runnable task, long delayMs, long periodMs, boolean blocking) {
+        Timeout timeout = new Timeout(task, delayMs, periodMs, blocking);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * run a task that makes a remote call on the rpc pool right away, e.g. one RequestVote
+     *
+     * @param task  task to run; a failure is counted as for a scheduled task
+     */
+    public void executeBlocking(Runnable task) {
+        rpcWorkers.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                taskFailed(task, e);
+            }
+        });
+    }
+
+    /**
+     * @return how many task runs have ended with an exception since the timer was created
+     */
+    public long getFailedRuns() {
+        return failedRuns.get();
+    }
+
+    private void taskFailed(Runnable task, RuntimeException e) {
+        // only the first failure is printed; a periodic task that keeps failing would flood stderr
+        if (failedRuns.getAndIncrement() == 0) {
+            System.err.println("raft timer: " + task.getClass().getSimpleName() + " failed: " + e
+                    + " (later failures are only counted, see getFailedRuns)");
+        }
+    }
+
+    private void runWheel() {
+        while (true) {
+            long tickDeadline = startTime + (currentTick + 1) * tickNanos;
+            long sleepNanos = tickDeadline - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            Timeout added;
+            while ((added = pending.poll()) != null) {
+                if (!added.cancelled) {
+                    place(added, currentTick);
+                }
+            }
+            int idx = (int) (currentTick & mask);
+            List<Timeout> bucket = wheel.set(idx, new ArrayList<>());
+            long now = System.nanoTime();
+            for (Timeout t: bucket) {
+                if (t.cancelled) continue;
+                if (t.deadline - now > tickNanos / 2) {
+                    // deadline was pushed back by reset(), or it is more than one rotation away
+                    place(t, currentTick + 1);
+                } else {
+                    (t.blocking ? rpcWorkers : workers).execute(t::fire);
+                }
+            }
+            currentTick++;
+        }
+    }
+
+    private void place(Timeout t, long minTick) {
+        long deadlineTick = (t.deadline - startTime + tickNanos - 1) / tickNanos;
+        wheel.get((int) (Math.max(deadlineTick, minTick) & mask)).add(t);
+    }
+
+    /**
+     * Timeout is the handle of a task scheduled on a HashedWheelTimer
+     */
+    public class Timeout {
+        private final Runnable task;
+        private final long delayNanos;
+        private final long periodNanos;
+        private final boolean blocking;
+        private volatile long deadline;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long delayMs, long periodMs, boolean blocking) {
+            this.task = task;
+            this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMs);
+            this.periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMs);
+            this.blocking = blocking;
+            this.deadline = System.nanoTime() + delayNanos;
+            this.cancelled = false;
+        }
+
+        /**
+         * push the next run back to one full delay from now, e.g. when a heartbeat is received
+         */
+        public void reset() {
+            deadline = System.nanoTime() + delayNanos;
+        }
+
+        /**
+         * stop any further runs of the task; a run that already started is allowed to finish
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void fire() {
+            if (cancelled) return;
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                taskFailed(task, e);
+            }
+            if (periodNanos > 0 && !cancelled) {
+                deadline = System.nanoTime() + periodNanos;
+                pending.add(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package raft;
+
+import remote.RemoteObjectException;
+import remote.TrafficClass;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HeartbeatAggregator sends the heartbeats of every group led on a MultiRaftHost as one batched
+ * Heartbeats call per destination node, instead of one AppendEntries per group and follower
+ *  -- followers that are not known to hold the leader's whole log still get a regular per-group
+ *     heartbeat through HeartbeatTask, so that log repair keeps working
+ *  -- followers reached by replication traffic within the interval are skipped, as in HeartbeatTask
+ */
+public class HeartbeatAggregator implements Runnable {
+    private MultiRaftHost host;
+
+    public HeartbeatAggregator(MultiRaftHost host) {
+        this.host = host;
+    }
+
+    @Override
+    public void run() {
+        for (int nodeId = 0; nodeId < host.numOfNodes; nodeId++) {
+            if (nodeId == host.nodeId) continue;
+            List<GroupHeartbeat> batch = new ArrayList<>();
+            List<RaftPeer> leaders = new ArrayList<>();
+            for (int groupId: host.getGroupIds()) {
+                RaftPeer group = host.getGroup(groupId);
+                if (group.getCurrentRole() != RaftRole.LEADER) continue;
+                if (group.hasRecentReplicationContact(nodeId)) continue;
+                if (!group.isCaughtUp(nodeId)) {
+                    try {
+                        new HeartbeatTask(group).sendTo(nodeId);
+                    } catch (RemoteObjectException e) {
+                        // the node is unreachable; the next round tries again, and the election
+                        // timeout handles a node that stays away
+                    }
+                    continue;
+                }
+                batch.add(new GroupHeartbeat(
+                        groupId, group.getCurrentTerm(), group.nodeId, group.getCommitIndexFor(nodeId)));
+                leaders.add(group);
+            }
+            if (batch.isEmpty()) continue;
+            try {
+                int[] terms = host.getNodeStub(nodeId, TrafficClass.CONTROL).Heartbeats(host.nodeId, batch);
+                for (int i = 0; i < leaders.size(); i++) {
+                    RaftPeer group = leaders.get(i);
+                    group.increaseRpcCallCount();
+                    if (terms[i] > group.getCurrentTerm()) {
+                        group.toFollower(terms[i]);
+                    }
+                }
+            } catch (RemoteObjectException e) {
+                // as above: a missed round only matters if the node stays away past its election timeout
+            }
+        }
+    }
+}
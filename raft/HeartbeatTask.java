@@ -1,7 +1,7 @@
 package raft;
 
 import remote.RemoteObjectException;
-import remote.StubFactory;
+import remote.TrafficClass;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -20,32 +20,55 @@ public class HeartbeatTask implements Runnable {
         for (int raftPeerId = 0; raftPeerId < node.numOfPeers; raftPeerId++) {
             try {
                 if (raftPeerId == node.nodeId) continue;
-                int prevLogIndex = node.getNextIndex()[raftPeerId] - 1;
-                int prevLogTerm = prevLogIndex == 0 ? 0 : node.getLogs().get(prevLogIndex - 1).term;
-                String peerAddr = node.getPeerPort(raftPeerId);
-                RaftInterface peer = StubFactory.create(RaftInterface.class, peerAddr);
-                AppendEntriesResp resp = peer.AppendEntries(
-                        node.getCurrentTerm(),
-                        node.nodeId,
-                        prevLogIndex,
-                        prevLogTerm,
-                        new ArrayList<>(),
-                        node.getCommitIndex()
-                );
-                node.callCount++;
-                if (resp != null) {
-                    if (resp.getTerm() > node.getCurrentTerm()) {
-                        node.toFollower(resp.getTerm());
-                    } else {
-                        if (!resp.isSuccess()) {
-                            AppendEntriesTask th = new AppendEntriesTask(node, raftPeerId);
-                            th.start();
-                        }
-                    }
-                }
+                // piggyback on replication traffic: the follower already heard from us this interval
+                if (node.hasRecentReplicationContact(raftPeerId)) continue;
+                sendTo(raftPeerId);
             } catch (RemoteObjectException e) {
 //                System.out.println("error is heartbeat task" + e.getMessage());
             }
         }
     }
+
+    /**
+     * send one empty AppendEntries to a follower and start a catch-up AppendEntriesTask if it rejects
+     *
+     * @param raftPeerId    id of the follower
+     * @throws RemoteObjectException if the follower cannot be reached
+     */
+    void sendTo(int raftPeerId) throws RemoteObjectException {
+        int prevLogIndex = node.getNextIndex(raftPeerId) - 1;
+        // the follower is being sent the snapshot, and the replication task's calls keep it quiet
+        if (node.needsSnapshot(prevLogIndex)) {
+            node.replicateTo(raftPeerId);
+            return;
+        }
+        int prevLogTerm = node.getLogTerm(prevLogIndex);
+        RaftInterface peer = node.getPeerStub(raftPeerId, TrafficClass.CONTROL);
+        AppendEntriesResp resp = peer.AppendEntries(
+                node.getCurrentTerm(),
+                node.nodeId,
+                prevLogIndex,
+                prevLogTerm,
+                new ArrayList<>(),
+                node.getCommitIndex()
+        );
+        node.increaseRpcCallCount();
+        if (resp != null) {
+            if (resp.getTerm() > node.getCurrentTerm()) {
+                node.toFollower(resp.getTerm());
+            } else {
+                if (!resp.isSuccess()) {
+                    node.getProgress(raftPeerId).onReject();
+                    node.replicateTo(raftPeerId);
+                } else {
+                    node.getProgress(raftPeerId).onSuccess(0, 0);
+                    node.recordHeartbeatMatch(raftPeerId, prevLogIndex);
+                    // the follower matches but is missing entries whose replication task expired
+                    if (node.getLastLog().index > prevLogIndex) {
+                        node.replicateTo(raftPeerId);
+                    }
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,33 @@
+package raft;
+
+import java.io.Serializable;
+
+/**
+ * IndexRange is returned by NewCommands: the log indexes [first, last] the leader assigned to a batch
+ * of commands, all in `term`.  the range is empty (last < first) if the peer is not the leader, in
+ * which case leaderId and leaderAddr point at the leader it knows of, as in StatusReport, or if
+ * the leader refused the batch under load, in which case `busy` is set.
+ */
+public class IndexRange implements Serializable {
+
+    public int first;
+    public int last;
+    public int term;
+    public boolean leader;
+    public int leaderId;
+    public String leaderAddr;
+    public boolean busy;
+
+    public IndexRange(int first, int last, int term, boolean leader, int leaderId, String leaderAddr) {
+        this.first = first;
+        this.last = last;
+        this.term = term;
+        this.leader = leader;
+        this.leaderId = leaderId;
+        this.leaderAddr = leaderAddr;
+    }
+
+    public int size() {
+        return Math.max(0, last - first + 1);
+    }
+}
@@ -0,0 +1,32 @@
+package raft;
+
+import java.io.Serializable;
+
+/**
+ * InstallSnapshotResp is a follower's answer to InstallSnapshot: `received` bytes of the snapshot
+ * have been fetched so far, and `done` is set once the follower's log holds everything up to the
+ * snapshot's last entry
+ */
+public class InstallSnapshotResp implements Serializable {
+    private int term;
+    private long received;
+    private boolean done;
+
+    public InstallSnapshotResp(int term, long received, boolean done) {
+        this.term = term;
+        this.received = received;
+        this.done = done;
+    }
+
+    public int getTerm() {
+        return term;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+}
@@ -0,0 +1,117 @@
+package raft;
+
+import remote.RemoteObjectException;
+import remote.StubFactory;
+
+import java.security.SecureRandom;
+
+/**
+ * KVClient is a client of a replicated key-value store that can retry safely
+ *  -- every command is tagged with this client's id and the next sequence number, so a retry of a
+ *     command that did commit is answered from the state machine's session table, not applied again
+ *  -- a failed call is retried on the next server until one accepts it or RETRY_DEADLINE passes;
+ *     the server that last succeeded is tried first, as it is most likely still the leader.  a
+ *     leader that answers busy is kept, and the call is retried on it after the backoff
+ *  -- one command is in flight at a time, which is what the session table relies on
+ *  -- once a server's session for this client has expired, a command that never got into a leader's
+ *     log is sent again under a new session; one that a leader took but did not commit in time may
+ *     have been applied, so its call fails instead.  a call that failed on the way, e.g. on a lost
+ *     connection, is taken not to have reached a log
+ */
+public class KVClient {
+    static final int RETRY_DEADLINE = 10000;
+    static final int RETRY_BACKOFF = 50;
+
+    private final KVInterface[] servers;
+    private long clientId;
+    private long sequence;
+    private int preferred;
+
+    /**
+     * Constructor for KVClient
+     *
+     * @param serverAddrs   client addresses of every KVServer, as "host:port"
+     */
+    public KVClient(String... serverAddrs) {
+        this.servers = new KVInterface[serverAddrs.length];
+        for (int i = 0; i < serverAddrs.length; i++) {
+            servers[i] = StubFactory.create(KVInterface.class, serverAddrs[i]);
+        }
+        this.clientId = newClientId();
+        this.sequence = 0;
+        this.preferred = 0;
+    }
+
+    private static long newClientId() {
+        SecureRandom random = new SecureRandom();
+        long id;
+        do {
+            id = random.nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    public synchronized long getClientId() {
+        return clientId;
+    }
+
+    public byte[] get(String key) throws RemoteObjectException {
+        return execute(KVCommand.get(key));
+    }
+
+    public byte[] put(String key, byte[] value) throws RemoteObjectException {
+        return execute(KVCommand.put(key, value));
+    }
+
+    public byte[] delete(String key) throws RemoteObjectException {
+        return execute(KVCommand.delete(key));
+    }
+
+    public boolean compareAndSet(String key, byte[] expected, byte[] value) throws RemoteObjectException {
+        return execute(KVCommand.compareAndSet(key, expected, value))[0] == 1;
+    }
+
+    private synchronized byte[] execute(KVCommand cmd) throws RemoteObjectException {
+        byte[] command = cmd.withSession(clientId, ++sequence).encode();
+        long deadline = System.currentTimeMillis() + RETRY_DEADLINE;
+        RemoteObjectException lastError = null;
+        // whether a leader answered that it took the command into its log
+        boolean sent = false;
+        while (System.currentTimeMillis() < deadline) {
+            boolean busy = false;
+            for (int i = 0; i < servers.length && !busy; i++) {
+                int server = (preferred + i) % servers.length;
+                try {
+                    byte[] result = servers[server].Execute(command);
+                    preferred = server;
+                    return result;
+                } catch (RemoteObjectException e) {
+                    lastError = e;
+                    if (KVServer.SESSION_EXPIRED.equals(e.getMessage())) {
+                        if (sent) {
+                            throw new RemoteObjectException("session expired while the command was retried,"
+                                    + " it may or may not have been applied", e);
+                        }
+                        // no copy of the command was applied, so it can go out under a new session
+                        clientId = newClientId();
+                        sequence = 1;
+                        command = cmd.withSession(clientId, sequence).encode();
+                    } else if (KVServer.NOT_COMMITTED.equals(e.getMessage())) {
+                        sent = true;
+                    } else if (KVServer.BUSY.equals(e.getMessage())) {
+                        preferred = server;
+                        busy = true;
+                    }
+                }
+            }
+            try {
+                // every server refused, most likely mid-election, or the leader is busy; give it time
+                Thread.sleep(RETRY_BACKOFF);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteObjectException(e);
+            }
+        }
+        throw new RemoteObjectException("command not executed before the retry deadline", lastError);
+    }
+}
@@ -0,0 +1,120 @@
+package raft;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * KVCommand is one operation on the replicated key-value store, encoded into the opaque byte[]
+ * payload of a RaftLog entry
+ *
+ * a command may carry a client session, i.e. the id of the issuing client and the client's sequence
+ * number for it, so that a retried command is applied only once; client id 0 means no session
+ */
+public class KVCommand {
+    public static final byte PUT = 1;
+    public static final byte GET = 2;
+    public static final byte DELETE = 3;
+    public static final byte CAS = 4;
+
+    final byte op;
+    final String key;
+    final byte[] value;
+    final byte[] expected;
+    final long clientId;
+    final long sequence;
+
+    private KVCommand(byte op, String key, byte[] value, byte[] expected, long clientId, long sequence) {
+        this.op = op;
+        this.key = key;
+        this.value = value;
+        this.expected = expected;
+        this.clientId = clientId;
+        this.sequence = sequence;
+    }
+
+    private KVCommand(byte op, String key, byte[] value, byte[] expected) {
+        this(op, key, value, expected, 0, 0);
+    }
+
+    public static KVCommand put(String key, byte[] value) {
+        return new KVCommand(PUT, key, value, null);
+    }
+
+    public static KVCommand get(String key) {
+        return new KVCommand(GET, key, null, null);
+    }
+
+    public static KVCommand delete(String key) {
+        return new KVCommand(DELETE, key, null, null);
+    }
+
+    /**
+     * @param expected  value the key must currently hold, or null if the key must be absent
+     */
+    public static KVCommand compareAndSet(String key, byte[] expected, byte[] value) {
+        return new KVCommand(CAS, key, value, expected);
+    }
+
+    /**
+     * @param clientId  id of the issuing client, non-zero
+     * @param sequence  the client's sequence number for this command, increasing by one per command
+     * @return a copy of this command tagged with the client's session
+     */
+    public KVCommand withSession(long clientId, long sequence) {
+        if (clientId == 0) {
+            throw new IllegalArgumentException("client id 0 is reserved for commands without a session");
+        }
+        return new KVCommand(op, key, value, expected, clientId, sequence);
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(buf)) {
+            out.writeByte(op);
+            out.writeLong(clientId);
+            out.writeLong(sequence);
+            out.writeUTF(key);
+            writeBytes(out, value);
+            writeBytes(out, expected);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buf.toByteArray();
+    }
+
+    public static KVCommand decode(byte[] data) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            byte op = in.readByte();
+            long clientId = in.readLong();
+            long sequence = in.readLong();
+            String key = in.readUTF();
+            byte[] value = readBytes(in);
+            byte[] expected = readBytes(in);
+            return new KVCommand(op, key, value, expected, clientId, sequence);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        // length -1 marks null, so a CAS can distinguish "absent" from "empty"
+        out.writeInt(bytes == null ? -1 : bytes.length);
+        if (bytes != null) {
+            out.write(bytes);
+        }
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,21 @@
+package raft;
+
+import remote.RemoteObjectException;
+
+/**
+ * KVInterface -- the client-facing "service interface" of a KVServer.  every operation, reads
+ * included, is replicated through the Raft log of the server's peer and answered once it has been
+ * applied, so results are linearizable.  calls to a server whose peer is not the leader fail with
+ * a RemoteObjectException, as do calls that are not applied within the server's proposal timeout.
+ *
+ * a failed call may still have been committed, so the plain operations are not safe to retry.
+ * KVClient retries through `Execute` instead, tagging each command with its client session so that
+ * the state machine applies it at most once.
+ */
+public interface KVInterface {
+    public byte[] Get(String key) throws RemoteObjectException;
+    public byte[] Put(String key, byte[] value) throws RemoteObjectException;
+    public byte[] Delete(String key) throws RemoteObjectException;
+    public boolean CompareAndSet(String key, byte[] expected, byte[] value) throws RemoteObjectException;
+    public byte[] Execute(byte[] command) throws RemoteObjectException;
+}
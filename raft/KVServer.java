@@ -0,0 +1,176 @@
+package raft;
+
+import remote.RemoteObjectException;
+import remote.Service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * KVServer serves KVInterface for one Raft peer
+ *  -- each client call is encoded as a KVCommand and proposed to the peer's log
+ *  -- the server is the peer's StateMachine, so it applies every committed command to its
+ *     KVStateMachine and completes the waiting client call, if this server proposed it
+ *  -- a command whose session has expired fails with SESSION_EXPIRED, see KVStateMachine
+ *  -- a failed call tells the client whether its command got into the leader's log: only after
+ *     NOT_COMMITTED may it have been; after NOT_LEADER, BUSY or LEADERSHIP_LOST it was not, or was
+ *     replaced before it could commit
+ */
+public class KVServer implements KVInterface, StateMachine {
+    static final int PROPOSAL_TIMEOUT = 2000;
+    static final String NOT_LEADER = "not leader";
+    static final String BUSY = "leader busy, retry later";
+    static final String NOT_COMMITTED = "command not committed in time";
+    static final String LEADERSHIP_LOST = "leadership lost";
+    static final String SESSION_EXPIRED = "session expired";
+
+    private final RaftPeer raft;
+    private final KVStateMachine kv;
+    private final Service<KVInterface> service;
+    private final Map<Integer, PendingCommand> pending;
+
+    /**
+     * Constructor for KVServer
+     *
+     * @param raft          the local Raft peer, which must not have a state machine yet
+     * @param clientPort    port for the client-facing Service, distinct from the peer's own port
+     */
+    public KVServer(RaftPeer raft, int clientPort) {
+        this.raft = raft;
+        this.kv = new KVStateMachine();
+        this.pending = new HashMap<>();
+        this.service = new Service<>(KVInterface.class, this, clientPort);
+        raft.setStateMachine(this);
+    }
+
+    public void start() throws RemoteObjectException {
+        service.start();
+    }
+
+    public void stop() {
+        service.stop();
+    }
+
+    public KVStateMachine getStateMachine() {
+        return kv;
+    }
+
+    @Override
+    public byte[] Get(String key) throws RemoteObjectException {
+        return propose(KVCommand.get(key));
+    }
+
+    @Override
+    public byte[] Put(String key, byte[] value) throws RemoteObjectException {
+        return propose(KVCommand.put(key, value));
+    }
+
+    @Override
+    public byte[] Delete(String key) throws RemoteObjectException {
+        return propose(KVCommand.delete(key));
+    }
+
+    @Override
+    public boolean CompareAndSet(String key, byte[] expected, byte[] value) throws RemoteObjectException {
+        return propose(KVCommand.compareAndSet(key, expected, value))[0] == 1;
+    }
+
+    /**
+     * run a command encoded by KVCommand.encode, usually tagged with a client session by KVClient
+     */
+    @Override
+    public byte[] Execute(byte[] command) throws RemoteObjectException {
+        try {
+            KVCommand.decode(command);
+        } catch (RuntimeException e) {
+            throw new RemoteObjectException("malformed command: " + e.getMessage());
+        }
+        return propose(command);
+    }
+
+    private byte[] propose(KVCommand cmd) throws RemoteObjectException {
+        return propose(cmd.encode());
+    }
+
+    private byte[] propose(byte[] command) throws RemoteObjectException {
+        PendingCommand p;
+        synchronized (pending) {
+            // registering under the same lock apply() takes keeps the entry from being applied first
+            RaftLog entry;
+            try {
+                entry = raft.proposeData(command);
+            } catch (RemoteObjectException e) {
+                // refused by admission control, so nothing was appended
+                throw new RemoteObjectException(BUSY);
+            }
+            if (entry == null) {
+                throw new RemoteObjectException(NOT_LEADER);
+            }
+            p = new PendingCommand(entry.term);
+            pending.put(entry.index, p);
+        }
+        try {
+            return p.result.get(PROPOSAL_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new RemoteObjectException(NOT_COMMITTED);
+        } catch (ExecutionException e) {
+            throw new RemoteObjectException(e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // the entry is in the log all the same
+            throw new RemoteObjectException(NOT_COMMITTED, e);
+        } finally {
+            synchronized (pending) {
+                pending.values().remove(p);
+            }
+        }
+    }
+
+    @Override
+    public void apply(RaftLog entry) {
+        if (entry.data == null) return;
+        byte[] result = kv.apply(entry.index, KVCommand.decode(entry.data));
+        PendingCommand p;
+        synchronized (pending) {
+            p = pending.remove(entry.index);
+        }
+        if (p == null) return;
+        if (p.term != entry.term) {
+            // a new leader replaced our entry at this index before it committed
+            p.result.completeExceptionally(new IllegalStateException(LEADERSHIP_LOST));
+        } else if (result == KVStateMachine.SESSION_EXPIRED) {
+            p.result.completeExceptionally(new IllegalStateException(SESSION_EXPIRED));
+        } else {
+            p.result.complete(result);
+        }
+    }
+
+    @Override
+    public byte[] snapshot() {
+        return kv.snapshot();
+    }
+
+    @Override
+    public PagedState fork() {
+        return kv.fork();
+    }
+
+    @Override
+    public void restore(byte[] state) {
+        kv.restore(state);
+    }
+
+    private static class PendingCommand {
+        final int term;
+        final CompletableFuture<byte[]> result;
+
+        PendingCommand(int term) {
+            this.term = term;
+            this.result = new CompletableFuture<>();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package raft;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * KVStateMachine is the deterministic key-value store that every peer rebuilds from the Raft log
+ *  -- commands with a client session are deduplicated: a client has at most one command in flight,
+ *     so the session table keeps only the last sequence number applied for each client and its result
+ *  -- a retried command is answered from the session table instead of being applied again, so the
+ *     table is part of the replicated state and is included in every snapshot
+ *  -- a session expires once SESSION_EXPIRY log entries have been applied after its last command.
+ *     expiry is measured in log indexes, not time, so every replica drops the same sessions at the
+ *     same entry; the table is kept in the order of each session's last command, so expiring is a
+ *     walk from its head.  a session is opened only by sequence number 1, so a later command of an
+ *     expired session is answered with SESSION_EXPIRED rather than applied a second time
+ *  -- keys are hashed into KEY_PAGES pages, and the session table is one more page.  fork() freezes
+ *     the state by taking the page array and starting a new epoch; a page from an older epoch is
+ *     copied before it is first changed, so a fork costs O(pages) and each later apply at most one
+ *     page copy, and pages no apply touched keep their version for an incremental snapshot
+ */
+public class KVStateMachine {
+    static final byte[] TRUE = new byte[] { 1 };
+    static final byte[] FALSE = new byte[] { 0 };
+    static final int KEY_PAGES = 4096;
+    static final int SESSION_EXPIRY = Integer.getInteger("raft.sessionExpiry", 100000);
+    /** returned, by identity, for a command of a session that has expired */
+    static final byte[] SESSION_EXPIRED = new byte[0];
+
+    private final Page<String, byte[]>[] store;
+    private Page<Long, Session> sessions;
+    private int keyCount;
+    // bumped by fork(); pages of earlier epochs may be shared with a fork
+    private long epoch;
+    private long lastVersion;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public KVStateMachine() {
+        this.store = new Page[KEY_PAGES];
+        for (int i = 0; i < KEY_PAGES; i++) {
+            store[i] = new Page<>(new HashMap<>(), epoch, ++lastVersion);
+        }
+        this.sessions = new Page<>(new LinkedHashMap<>(), epoch, ++lastVersion);
+    }
+
+    /**
+     * apply one command, unless its session shows it was applied already, and expire the sessions
+     * that have been idle too long by the time of its entry
+     *
+     * @param index the log index of the command's entry
+     * @param cmd   the decoded command
+     * @return the previous value for PUT and DELETE, the current value for GET (null if absent),
+     *         and TRUE or FALSE for CAS; a duplicate gets the result of its first application, or
+     *         null if the client has since moved on to a later command; SESSION_EXPIRED if the
+     *         command's session is gone
+     */
+    public synchronized byte[] apply(int index, KVCommand cmd) {
+        expireSessions(index);
+        if (cmd.clientId == 0) {
+            return execute(cmd);
+        }
+        Session session = sessions.map.get(cmd.clientId);
+        if (session == null && cmd.sequence != 1) {
+            return SESSION_EXPIRED;
+        }
+        if (session != null && cmd.sequence <= session.lastSequence) {
+            return cmd.sequence == session.lastSequence ? session.lastResult : null;
+        }
+        byte[] result = execute(cmd);
+        Map<Long, Session> table = sessionsForWrite();
+        // removed first, so the session moves to the tail of the table
+        table.remove(cmd.clientId);
+        table.put(cmd.clientId, new Session(cmd.sequence, index, result));
+        return result;
+    }
+
+    private void expireSessions(int index) {
+        Iterator<Session> oldest = sessions.map.values().iterator();
+        if (!oldest.hasNext() || oldest.next().lastIndex > index - SESSION_EXPIRY) {
+            return;
+        }
+        oldest = sessionsForWrite().values().iterator();
+        while (oldest.hasNext() && oldest.next().lastIndex <= index - SESSION_EXPIRY) {
+            oldest.remove();
+        }
+    }
+
+    private byte[] execute(KVCommand cmd) {
+        switch (cmd.op) {
+            case KVCommand.PUT:
+                return put(cmd.key, cmd.value);
+            case KVCommand.GET:
+                return read(cmd.key);
+            case KVCommand.DELETE:
+                return remove(cmd.key);
+            case KVCommand.CAS:
+                if (!Arrays.equals(read(cmd.key), cmd.expected)) {
+                    return FALSE;
+                }
+                if (cmd.value == null) {
+                    remove(cmd.key);
+                } else {
+                    put(cmd.key, cmd.value);
+                }
+                return TRUE;
+            default:
+                throw new IllegalArgumentException("unknown KV operation " + cmd.op);
+        }
+    }
+
+    private byte[] put(String key, byte[] value) {
+        Map<String, byte[]> page = keysForWrite(key);
+        int before = page.size();
+        byte[] previous = page.put(key, value);
+        keyCount += page.size() - before;
+        return previous;
+    }
+
+    private byte[] remove(String key) {
+        Map<String, byte[]> page = keysForWrite(key);
+        int before = page.size();
+        byte[] previous = page.remove(key);
+        keyCount += page.size() - before;
+        return previous;
+    }
+
+    // the key's page, copied first if a fork may share it
+    private Map<String, byte[]> keysForWrite(String key) {
+        int i = pageOf(key);
+        if (store[i].epoch != epoch) {
+            store[i] = new Page<>(new HashMap<>(store[i].map), epoch, ++lastVersion);
+        }
+        return store[i].map;
+    }
+
+    private Map<Long, Session> sessionsForWrite() {
+        if (sessions.epoch != epoch) {
+            sessions = new Page<>(new LinkedHashMap<>(sessions.map), epoch, ++lastVersion);
+        }
+        return sessions.map;
+    }
+
+    private static int pageOf(String key) {
+        return (key.hashCode() & 0x7fffffff) % KEY_PAGES;
+    }
+
+    /**
+     * read a key from this replica's local state, which may lag behind the leader
+     */
+    public synchronized byte[] read(String key) {
+        return store[pageOf(key)].map.get(key);
+    }
+
+    public synchronized int size() {
+        return keyCount;
+    }
+
+    /**
+     * @return number of clients with an open session, i.e. one not yet expired
+     */
+    public synchronized int sessionCount() {
+        return sessions.map.size();
+    }
+
+    /**
+     * freeze the state for a snapshot, see the class comment
+     *
+     * @return the key pages followed by the session page, unchanged by later applies
+     */
+    public synchronized PagedState fork() {
+        PagedState frozen = new Frozen(store.clone(), sessions);
+        epoch++;
+        return frozen;
+    }
+
+    /**
+     * @return the whole state, keys and sessions, encoded for restore()
+     */
+    public synchronized byte[] snapshot() {
+        // encoded under the lock, so the pages need not be frozen
+        PagedState state = new Frozen(store, sessions);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(buf)) {
+            out.writeInt(state.pageCount());
+            for (int i = 0; i < state.pageCount(); i++) {
+                byte[] page = state.encode(i);
+                out.writeInt(page.length);
+                out.write(page);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buf.toByteArray();
+    }
+
+    /**
+     * replace the whole state with a snapshot taken by snapshot(), or written page by page from fork()
+     *
+     * @param snapshot  the encoded state
+     */
+    public synchronized void restore(byte[] snapshot) {
+        epoch++;
+        for (int i = 0; i < KEY_PAGES; i++) {
+            store[i] = new Page<>(new HashMap<>(), epoch, ++lastVersion);
+        }
+        sessions = new Page<>(new LinkedHashMap<>(), epoch, ++lastVersion);
+        keyCount = 0;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot))) {
+            int pages = in.readInt();
+            // every page but the last holds keys, which are hashed again in case KEY_PAGES changed
+            for (int p = 0; p < pages - 1; p++) {
+                in.readInt();
+                int numKeys = in.readInt();
+                for (int i = 0; i < numKeys; i++) {
+                    String key = in.readUTF();
+                    put(key, KVCommand.readBytes(in));
+                }
+            }
+            in.readInt();
+            // in the order they were written, which keeps the oldest session first
+            int numSessions = in.readInt();
+            for (int i = 0; i < numSessions; i++) {
+                long clientId = in.readLong();
+                long lastSequence = in.readLong();
+                int lastIndex = in.readInt();
+                sessions.map.put(clientId, new Session(lastSequence, lastIndex, KVCommand.readBytes(in)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static class Page<K, V> {
+        final HashMap<K, V> map;
+        final long epoch;
+        final long version;
+
+        Page(HashMap<K, V> map, long epoch, long version) {
+            this.map = map;
+            this.epoch = epoch;
+            this.version = version;
+        }
+    }
+
+    private static class Frozen implements PagedState {
+        private final Page<String, byte[]>[] keys;
+        private final Page<Long, Session> sessions;
+
+        Frozen(Page<String, byte[]>[] keys, Page<Long, Session> sessions) {
+            this.keys = keys;
+            this.sessions = sessions;
+        }
+
+        @Override
+        public int pageCount() {
+            return keys.length + 1;
+        }
+
+        @Override
+        public long version(int page) {
+            return page < keys.length ? keys[page].version : sessions.version;
+        }
+
+        @Override
+        public byte[] encode(int page) {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(buf)) {
+                if (page < keys.length) {
+                    out.writeInt(keys[page].map.size());
+                    for (Map.Entry<String, byte[]> e: keys[page].map.entrySet()) {
+                        out.writeUTF(e.getKey());
+                        KVCommand.writeBytes(out, e.getValue());
+                    }
+                } else {
+                    out.writeInt(sessions.map.size());
+                    for (Map.Entry<Long, Session> e: sessions.map.entrySet()) {
+                        out.writeLong(e.getKey());
+                        out.writeLong(e.getValue().lastSequence);
+                        out.writeInt(e.getValue().lastIndex);
+                        KVCommand.writeBytes(out, e.getValue().lastResult);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return buf.toByteArray();
+        }
+    }
+
+    private static class Session {
+        final long lastSequence;
+        // log index of the session's last command, which its expiry counts from
+        final int lastIndex;
+        final byte[] lastResult;
+
+        Session(long lastSequence, int lastIndex, byte[] lastResult) {
+            this.lastSequence = lastSequence;
+            this.lastIndex = lastIndex;
+            this.lastResult = lastResult;
+        }
+    }
+}
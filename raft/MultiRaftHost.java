@@ -0,0 +1,216 @@
+package raft;
+
+import remote.RemoteObjectException;
+import remote.Service;
+import remote.TrafficClass;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MultiRaftHost runs many independent Raft groups on one node over a shared transport
+ *  -- one remote Service listener per node, with incoming calls routed to a group by its id
+ *  -- one MultiRaftInterface stub per remote node and TrafficClass, shared by every group through
+ *     GroupRaftStub
+ *  -- every group's election timer runs on the shared HashedWheelTimer and its pools
+ *  -- heartbeats of all groups led here are coalesced into one call per node by a HeartbeatAggregator
+ *
+ * node ids and ports follow the same sequential scheme as stand-alone RaftPeers, and every node of
+ * a group has the same node id in all groups it hosts.
+ */
+public class MultiRaftHost implements MultiRaftInterface {
+    int port;
+    int nodeId;
+    int numOfNodes;
+    Service<MultiRaftInterface> service;
+
+    private final MultiRaftInterface[] nodeStubs;
+    private final MultiRaftInterface[] controlStubs;
+    private final Map<Integer, RaftPeer> groups;
+    private volatile boolean isNodeActivated;
+    private HashedWheelTimer.Timeout heartbeatTimer;
+
+    /**
+     * Constructor for MultiRaftHost
+     *
+     * @param port      node's service port number
+     * @param id        node's id/index among nodes
+     * @param num       number of nodes in the system
+     */
+    public MultiRaftHost(int port, int id, int num) {
+        this.port = port;
+        this.nodeId = id;
+        this.numOfNodes = num;
+        this.groups = new ConcurrentHashMap<>();
+        this.service = new Service<>(MultiRaftInterface.class, this, port, false, false, RaftPeer.TRANSPORT);
+        this.nodeStubs = new MultiRaftInterface[num];
+        this.controlStubs = new MultiRaftInterface[num];
+        for (int i = 0; i < num; i++) {
+            if (i == id) continue;
+            String addr = "127.0.0.1:" + (port + i - id);
+            nodeStubs[i] = RaftPeer.peerStub(MultiRaftInterface.class, addr, TrafficClass.BULK);
+            controlStubs[i] = RaftPeer.peerStub(MultiRaftInterface.class, addr, TrafficClass.CONTROL);
+        }
+        this.isNodeActivated = false;
+    }
+
+    /**
+     * create this node's member of a Raft group; it is activated right away if the host is active
+     *
+     * @param groupId   id of the group, the same on every node
+     * @return the group's local RaftPeer
+     */
+    public synchronized RaftPeer addGroup(int groupId) {
+        if (groups.containsKey(groupId)) {
+            throw new IllegalArgumentException(String.format("group %d already exists", groupId));
+        }
+        RaftInterface[] stubs = new RaftInterface[numOfNodes];
+        RaftInterface[] control = new RaftInterface[numOfNodes];
+        for (int i = 0; i < numOfNodes; i++) {
+            if (i == nodeId) continue;
+            stubs[i] = new GroupRaftStub(nodeStubs[i], groupId);
+            control[i] = new GroupRaftStub(controlStubs[i], groupId);
+        }
+        RaftPeer group = new RaftPeer(port, nodeId, numOfNodes, (peerId, trafficClass) ->
+                trafficClass == TrafficClass.CONTROL ? control[peerId] : stubs[peerId]);
+        group.setCoalescedHeartbeats(true);
+        groups.put(groupId, group);
+        if (isNodeActivated) {
+            group.Activate();
+        }
+        return group;
+    }
+
+    public RaftPeer getGroup(int groupId) {
+        return groups.get(groupId);
+    }
+
+    public Set<Integer> getGroupIds() {
+        return groups.keySet();
+    }
+
+    MultiRaftInterface getNodeStub(int id, TrafficClass trafficClass) {
+        return trafficClass == TrafficClass.CONTROL ? controlStubs[id] : nodeStubs[id];
+    }
+
+    /**
+     * start the shared Service and every hosted group, see RaftPeer.Activate
+     */
+    public synchronized void Activate() {
+        try {
+            service.start();
+        } catch (RemoteObjectException e) {
+            e.printStackTrace();
+            return;
+        }
+        isNodeActivated = true;
+        for (RaftPeer group: groups.values()) {
+            group.Activate();
+        }
+        heartbeatTimer = HashedWheelTimer.shared().schedule(
+                new HeartbeatAggregator(this), 0, RaftPeer.HEARTBEAT_INTERVAL, true);
+    }
+
+    /**
+     * stop the shared Service and pause every hosted group, see RaftPeer.Deactivate
+     */
+    public synchronized void Deactivate() {
+        service.stop();
+        isNodeActivated = false;
+        if (heartbeatTimer != null) {
+            heartbeatTimer.cancel();
+        }
+        for (RaftPeer group: groups.values()) {
+            group.Deactivate();
+        }
+    }
+
+    private RaftPeer group(int groupId) throws RemoteObjectException {
+        RaftPeer group = groups.get(groupId);
+        if (group == null) {
+            throw new RemoteObjectException(String.format("group %d does not exist", groupId));
+        }
+        return group;
+    }
+
+    @Override
+    public RequestVoteResp RequestVote(int groupId,
+                                       int candidateTerm,
+                                       int candidateId,
+                                       int candidateLastLogIndex,
+                                       int candidateLastLogTerm)
+            throws RemoteObjectException
+    {
+        return group(groupId).RequestVote(candidateTerm, candidateId, candidateLastLogIndex, candidateLastLogTerm);
+    }
+
+    @Override
+    public AppendEntriesResp AppendEntries(
+            int groupId,
+            int leaderTerm,
+            int leaderId,
+            int prevLogIndex,
+            int prevLogTerm,
+            List<RaftLog> entries,
+            int leaderCommit) throws RemoteObjectException
+    {
+        return group(groupId).AppendEntries(leaderTerm, leaderId, prevLogIndex, prevLogTerm, entries, leaderCommit);
+    }
+
+    @Override
+    public InstallSnapshotResp InstallSnapshot(
+            int groupId,
+            int leaderTerm,
+            int leaderId,
+            int lastIncludedIndex,
+            int lastIncludedTerm,
+            String source) throws RemoteObjectException
+    {
+        return group(groupId).InstallSnapshot(leaderTerm, leaderId, lastIncludedIndex, lastIncludedTerm, source);
+    }
+
+    @Override
+    public int GetCommittedCmd(int groupId, int index) throws RemoteObjectException {
+        return group(groupId).GetCommittedCmd(index);
+    }
+
+    @Override
+    public List<RaftLog> GetCommittedRange(int groupId, int from, int to) throws RemoteObjectException {
+        return group(groupId).GetCommittedRange(from, to);
+    }
+
+    @Override
+    public int[] GetCommittedCmds(int groupId, int from, int to) throws RemoteObjectException {
+        return group(groupId).GetCommittedCmds(from, to);
+    }
+
+    @Override
+    public StatusReport GetStatus(int groupId) throws RemoteObjectException {
+        return group(groupId).GetStatus();
+    }
+
+    @Override
+    public StatusReport NewCommand(int groupId, int command) throws RemoteObjectException {
+        return group(groupId).NewCommand(command);
+    }
+
+    @Override
+    public IndexRange NewCommands(int groupId, int[] commands) throws RemoteObjectException {
+        return group(groupId).NewCommands(commands);
+    }
+
+    @Override
+    public int[] Heartbeats(int leaderNodeId, List<GroupHeartbeat> heartbeats) throws RemoteObjectException {
+        int[] terms = new int[heartbeats.size()];
+        for (int i = 0; i < terms.length; i++) {
+            GroupHeartbeat hb = heartbeats.get(i);
+            RaftPeer group = groups.get(hb.getGroupId());
+            // a group this node does not host cannot hold back the leader
+            terms[i] = group == null ? 0 : group.onCoalescedHeartbeat(
+                    hb.getTerm(), hb.getLeaderId(), hb.getCommitIndex());
+        }
+        return terms;
+    }
+}
@@ -0,0 +1,41 @@
+package raft;
+
+import java.util.List;
+
+import remote.RemoteObjectException;
+
+/**
+ * MultiRaftInterface -- the "service interface" of a MultiRaftHost.  it mirrors RaftInterface, with
+ * every method taking the id of the Raft group it is addressed to as its first argument, so that
+ * many independent groups can share one remote Service listener per node.
+ *
+ * Heartbeats carries the heartbeats of all groups led by one node to another node in a single call,
+ * and returns the receiving peers' current terms in the same order as the batch.
+ */
+public interface MultiRaftInterface {
+    public RequestVoteResp RequestVote(int groupId, int candidateTerm, int candidateId, int candidateLastLogIndex, int candidateLastLogTerm) throws RemoteObjectException;
+    public AppendEntriesResp AppendEntries(
+            int groupId,
+            int leaderTerm,
+            int leaderId,
+            int prevLogIndex,
+            int prevLogTerm,
+            List<RaftLog> entries,
+            int leaderCommit) throws RemoteObjectException;
+    public InstallSnapshotResp InstallSnapshot(
+            int groupId,
+            int leaderTerm,
+            int leaderId,
+            int lastIncludedIndex,
+            int lastIncludedTerm,
+            String source) throws RemoteObjectException;
+
+    public int GetCommittedCmd(int groupId, int index) throws RemoteObjectException;
+    public List<RaftLog> GetCommittedRange(int groupId, int from, int to) throws RemoteObjectException;
+    public int[] GetCommittedCmds(int groupId, int from, int to) throws RemoteObjectException;
+    public StatusReport GetStatus(int groupId) throws RemoteObjectException;
+    public StatusReport NewCommand(int groupId, int command) throws RemoteObjectException;
+    public IndexRange NewCommands(int groupId, int[] commands) throws RemoteObjectException;
+
+    public int[] Heartbeats(int leaderNodeId, List<GroupHeartbeat> heartbeats) throws RemoteObjectException;
+}
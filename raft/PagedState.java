@@ -0,0 +1,29 @@
+package raft;
+
+/**
+ * PagedState is a frozen copy of a StateMachine's state, split into pages, as returned by
+ * StateMachine.fork() for an incremental snapshot
+ *  -- it must not change after fork() returns, however the state machine goes on, so that a
+ *     background thread can encode it while entries are still being applied
+ *  -- every page carries a version that changes whenever the page's content does, so a snapshot
+ *     only needs to write the pages whose version differs from the one written last time
+ */
+public interface PagedState {
+    /**
+     * @return number of pages, the same for every fork of one state machine
+     */
+    int pageCount();
+
+    /**
+     * @param page  page number, from 0
+     * @return the page's version; two forks of one state machine whose page has the same version
+     *         hold the same content for it
+     */
+    long version(int page);
+
+    /**
+     * @param page  page number, from 0
+     * @return the page's content, as StateMachine.restore expects to find it
+     */
+    byte[] encode(int page);
+}
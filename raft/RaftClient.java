@@ -0,0 +1,141 @@
+package raft;
+
+import remote.RemoteObjectException;
+import remote.StubFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * RaftClient submits commands to a Raft group without scanning every peer for the leader
+ *  -- the last peer that accepted a command as leader is cached and tried first
+ *  -- a follower's StatusReport names the leader it knows of, and the client follows that redirect
+ *  -- the cache is dropped only when the cached peer fails or no longer leads; peers are then
+ *     tried in turn, with a short backoff once all of them refused, e.g. during an election
+ *  -- a leader that answers busy is kept, and the call is retried on it after the same backoff
+ */
+public class RaftClient {
+    static final int RETRY_DEADLINE = 10000;
+    static final int RETRY_BACKOFF = 50;
+    // bound on redirects followed in a row, in case peers point at each other across terms
+    static final int MAX_REDIRECTS = 3;
+
+    private final String[] peerAddrs;
+    private final Map<String, RaftInterface> stubs;
+    private String leaderAddr;
+    private int nextPeer;
+
+    /**
+     * Constructor for RaftClient
+     *
+     * @param peerAddrs     addresses of every peer in the group, as "host:port"
+     */
+    public RaftClient(String... peerAddrs) {
+        this.peerAddrs = peerAddrs.clone();
+        this.stubs = new HashMap<>();
+        this.leaderAddr = null;
+        this.nextPeer = 0;
+    }
+
+    /**
+     * @return address of the cached leader, or null if none is cached
+     */
+    public synchronized String getLeaderAddr() {
+        return leaderAddr;
+    }
+
+    /**
+     * submit a command to the leader
+     *
+     * @param command   the command to append to the log
+     * @return the leader's StatusReport, whose index is where the command was appended
+     * @throws RemoteObjectException if no leader accepted the command before RETRY_DEADLINE
+     */
+    public StatusReport submit(int command) throws RemoteObjectException {
+        return callLeader(stub -> {
+            StatusReport reply = stub.NewCommand(command);
+            return new Reply<>(reply, reply.leader, reply.busy, reply.leaderAddr);
+        });
+    }
+
+    /**
+     * submit a batch of commands to the leader, which appends them in one step
+     *
+     * @param commands  the commands to append to the log, in order
+     * @return the range of indexes the leader assigned to the commands
+     * @throws RemoteObjectException if no leader accepted the batch before RETRY_DEADLINE
+     */
+    public IndexRange submitAll(int[] commands) throws RemoteObjectException {
+        return callLeader(stub -> {
+            IndexRange range = stub.NewCommands(commands);
+            return new Reply<>(range, range.leader, range.busy, range.leaderAddr);
+        });
+    }
+
+    private synchronized <T> T callLeader(LeaderCall<T> call) throws RemoteObjectException {
+        long deadline = System.currentTimeMillis() + RETRY_DEADLINE;
+        RemoteObjectException lastError = null;
+        int refused = 0;
+        while (System.currentTimeMillis() < deadline) {
+            String addr = leaderAddr != null ? leaderAddr : peerAddrs[nextPeer++ % peerAddrs.length];
+            int redirects = 0;
+            boolean busy = false;
+            while (addr != null) {
+                Reply<T> reply;
+                try {
+                    reply = call.call(stub(addr));
+                } catch (RemoteObjectException e) {
+                    lastError = e;
+                    break;
+                }
+                if (reply.leader) {
+                    leaderAddr = addr;
+                    if (!reply.busy) {
+                        return reply.value;
+                    }
+                    busy = true;
+                    break;
+                }
+                boolean redirect = reply.leaderAddr != null && !reply.leaderAddr.equals(addr) &&
+                        redirects++ < MAX_REDIRECTS;
+                addr = redirect ? reply.leaderAddr : null;
+            }
+            if (!busy) {
+                leaderAddr = null;
+            }
+            if (busy || ++refused % peerAddrs.length == 0) {
+                try {
+                    Thread.sleep(RETRY_BACKOFF);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RemoteObjectException(e);
+                }
+            }
+        }
+        throw new RemoteObjectException("no leader accepted the command before the retry deadline", lastError);
+    }
+
+    private RaftInterface stub(String addr) {
+        return stubs.computeIfAbsent(addr, a -> StubFactory.create(RaftInterface.class, a));
+    }
+
+    private interface LeaderCall<T> {
+        Reply<T> call(RaftInterface stub) throws RemoteObjectException;
+    }
+
+    // a peer's answer, with whether it came from the leader, whether the leader was too busy to take
+    // the call and, if it is not the leader, the leader it points at
+    private static class Reply<T> {
+        final T value;
+        final boolean leader;
+        final boolean busy;
+        final String leaderAddr;
+
+        Reply(T value, boolean leader, boolean busy, String leaderAddr) {
+            this.value = value;
+            this.leader = leader;
+            this.busy = busy;
+            this.leaderAddr = leaderAddr;
+        }
+    }
+}
@@ -32,6 +32,13 @@ import remote.RemoteObjectException;
  *    and reply back to the Controller with a StatusReport object as above. it must be
  *    implemented as given, or the test code will not function correctly.
  *
+ * besides these, NewCommands lets a client submit a batch of commands in one call; the leader
+ * appends them all at once and returns the range of log indexes they were assigned.  likewise
+ * GetCommittedRange and GetCommittedCmds read a whole range of committed entries in one call.
+ * InstallSnapshot is sent by a leader instead of AppendEntries to a follower that needs entries the
+ * leader has compacted into its snapshot; the snapshot itself is fetched from `source` on a separate
+ * connection, and the leader repeats the call, which also serves as its heartbeat, until it is done.
+ *
  * Note that all of these methods must throw a `RemoteObjectException`, since that is required for
  * the remote library use.
  */
@@ -45,9 +52,18 @@ public interface RaftInterface {
             int prevLogTerm,
             List<RaftLog> entries,
             int leaderCommit) throws RemoteObjectException;
+    public InstallSnapshotResp InstallSnapshot(
+            int leaderTerm,
+            int leaderId,
+            int lastIncludedIndex,
+            int lastIncludedTerm,
+            String source) throws RemoteObjectException;
     
     public int GetCommittedCmd(int index) throws RemoteObjectException;
+    public List<RaftLog> GetCommittedRange(int from, int to) throws RemoteObjectException;
+    public int[] GetCommittedCmds(int from, int to) throws RemoteObjectException;
     public StatusReport GetStatus() throws RemoteObjectException;
     public StatusReport NewCommand(int command) throws RemoteObjectException;
+    public IndexRange NewCommands(int[] commands) throws RemoteObjectException;
 }
 
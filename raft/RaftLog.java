@@ -3,7 +3,12 @@ package raft;
 import java.io.Serializable;
 
 public class RaftLog implements Serializable {
+    // index, term and msg, plus the length prefix of data
+    static final int HEADER_BYTES = 16;
+
     int msg;
+    // opaque command for the StateMachine, or null for int commands from NewCommand
+    byte[] data;
     int term;
     int index;
 
@@ -12,4 +17,29 @@ public class RaftLog implements Serializable {
         this.term = term;
         this.index = index;
     }
+
+    public RaftLog(byte[] data, int term, int index) {
+        this.data = data;
+        this.term = term;
+        this.index = index;
+    }
+
+    public int getTerm() {
+        return term;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return approximate encoded size of the entry, used to cap AppendEntries batches
+     */
+    public int sizeInBytes() {
+        return HEADER_BYTES + (data == null ? 0 : data.length);
+    }
 }
\ No newline at end of file
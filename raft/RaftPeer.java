@@ -3,49 +3,113 @@ package raft;
 import remote.RemoteObjectException;
 import remote.Service;
 import remote.StubFactory;
+import remote.TrafficClass;
+import remote.Transport;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * RaftPeer class represents a Raft peer node that interacts with others using remote calls
  *  -- each RaftPeer supports a Service interface to accept incoming remote calls per RaftInterface
  *  -- each RaftPeer holds a list of stub interfaces to request remote calls per RaftInferface
  *  -- all remote calls are implemented using the underlying remote object library
+ *  -- state transitions are guarded by the peer's monitor
  */
 public class RaftPeer implements RaftInterface {
     // Constructor params
     int port;
     int nodeId;
     int numOfPeers;
+    // null for a group hosted by a MultiRaftHost, which owns the shared Service
     Service<RaftInterface> service;
+    private final RaftTransport transport;
+    // "ip:port" of every peer, by id
+    private final String[] peerAddresses;
 
-    private boolean receivedHeartbeat;
+    private volatile boolean receivedHeartbeat;
 
     // Persistent state
-    private int currentTerm;
-    private Integer votedFor;
+    private volatile int currentTerm;
+    private volatile Integer votedFor;
     private final List<RaftLog> logs;
+    // on-disk copy of logs, or null to keep the log in memory only
+    private final WriteAheadLog wal;
+    // snapshot found by recovery, restored into the state machine when it is attached
+    private WriteAheadLog.Snapshot recoveredSnapshot;
+    private volatile int lastSnapshotIndex;
+    // serves the snapshot to followers behind the compacted log, started when one first needs it
+    private SnapshotSender snapshotSender;
+    // fetching a leader's snapshot, or null
+    private SnapshotFetcher snapshotFetcher;
+    // writes a forked state machine's snapshot in the background; touched by the applier only
+    private Thread snapshotWriter;
+    // why the last snapshot could not be saved, cleared by the next one that is; the applied index
+    // it was for holds off the retry for another SNAPSHOT_INTERVAL
+    private volatile IOException snapshotFailure;
+    private volatile int failedSnapshotIndex;
+    // a leader's snapshot was installed into the log and awaits the applier
+    private boolean snapshotInstalled;
 
     // Volatile state
-    private int commitIndex;
+    private volatile int commitIndex;
     private int lastApplied;
 
     // Volatile state for leaders
     private int[] nextIndex;
     private int[] matchIndex;
-    private RaftRole currentRole;
+    private volatile RaftRole currentRole;
+    // leader of currentTerm as far as this peer knows, or -1
+    private volatile int knownLeaderId;
 
-    private ScheduledFuture electionTimer;
-    private ScheduledFuture heartbeatTimer;
-    private ScheduledExecutorService electionScheduler;
-    private ScheduledExecutorService heartbeatScheduler;
+    private HashedWheelTimer.Timeout electionTimer;
+    private HashedWheelTimer.Timeout heartbeatTimer;
+    private HashedWheelTimer timer;
     private int electionInterval;
     private int replicationOkCount;
-    int callCount;
-    boolean isNodeActivated;
-    private List<AppendEntriesTask> runningTasks;
+    final AtomicInteger callCount;
+    volatile boolean isNodeActivated;
+    private StateMachine stateMachine;
+    private final List<CommitSubscription> subscriptions;
+    // the single AppendEntriesTask running for each follower, or null
+    private final AppendEntriesTask[] replicators;
+    private final FollowerProgress[] progress;
+    // payload bytes of the entries past commitIndex, for admission control
+    private long uncommittedBytes;
+    private final AtomicLong rejectedProposals;
+    // last time (System.nanoTime) each follower acknowledged an AppendEntriesTask round
+    private long[] lastReplicationContact;
+    // set by a MultiRaftHost whose HeartbeatAggregator sends this group's heartbeats
+    private volatile boolean coalescedHeartbeats;
     private boolean debug = false;
+
+    static final int HEARTBEAT_INTERVAL = 100;
+    static final int REPLICATION_TASK_LIFETIME = 100;
+    // deadlines of calls to other peers; a vote or heartbeat answered after the shortest election
+    // timeout is of no use, while a replication call only must not hang its AppendEntriesTask
+    static final int CONTROL_RPC_TIMEOUT = Integer.getInteger("raft.controlRpcTimeout", 150);
+    static final int BULK_RPC_TIMEOUT = Integer.getInteger("raft.bulkRpcTimeout", 5000);
+    static final int MAX_BATCH_ENTRIES = Integer.getInteger("raft.maxBatchEntries", 256);
+    static final int MAX_BATCH_BYTES = Integer.getInteger("raft.maxBatchBytes", 1 << 20);
+    static final int MAX_RANGE_ENTRIES = 65536;
+    static final int MAX_UNCOMMITTED_ENTRIES = Integer.getInteger("raft.maxUncommittedEntries", 100000);
+    static final long MAX_UNCOMMITTED_BYTES = Long.getLong("raft.maxUncommittedBytes", 64L << 20);
+    // directory for the peers' write-ahead logs; unset keeps logs in memory only
+    static final String LOG_DIR = System.getProperty("raft.logDir");
+    // applied entries between state machine snapshots, when there is a write-ahead log
+    static final int SNAPSHOT_INTERVAL = Integer.getInteger("raft.snapshotInterval", 10000);
+    // entries a commit subscription may lag behind a snapshot before it stops holding back compaction
+    static final int MAX_SUBSCRIPTION_LAG = Integer.getInteger("raft.maxSubscriptionLag", 4 * SNAPSHOT_INTERVAL);
+    // "unix" sends calls between peers on this host over Unix domain sockets, and "in_process" or
+    // "in_process_copy" makes calls between peers in this JVM directly; clients still use TCP
+    static final Transport TRANSPORT = Transport.valueOf(
+            System.getProperty("raft.transport", "tcp").toUpperCase(Locale.ROOT));
+
     /**
      * Constructor for RaftPeer
      * 
@@ -57,6 +121,20 @@ public class RaftPeer implements RaftInterface {
      * can determine the port numbers of other peers from the give parameters
      */
     public RaftPeer(int port, int id, int num) {
+        this(port, id, num, null);
+    }
+
+    /**
+     * Constructor for a RaftPeer whose remote calls are carried by a caller-supplied transport
+     *
+     * @param port          service port of the node hosting this peer
+     * @param id            peer's id/index among peers
+     * @param num           number of peers in the group
+     * @param transport     source of stubs for the other peers, or null to bind a Service on `port`
+     *                      and create stubs with StubFactory; only such stand-alone peers keep a
+     *                      WriteAheadLog under `raft.logDir`, as hosted groups share their port
+     */
+    RaftPeer(int port, int id, int num, RaftTransport transport) {
         //        
         // when a new Raft peer is created, its initial state should be populated into suitable object
         // member variables, and its remote Service and StubFactory components should be created,
@@ -70,29 +148,75 @@ public class RaftPeer implements RaftInterface {
         this.port = port;
         this.nodeId = id;
         this.numOfPeers = num;
-        this.logs = new ArrayList<>();
+        this.peerAddresses = new String[num];
+        for (int peerId = 0; peerId < num; peerId++) {
+            peerAddresses[peerId] = "127.0.0.1:" + (port + (peerId - id));
+        }
+        this.wal = transport == null && LOG_DIR != null ?
+                WriteAheadLog.open(Paths.get(LOG_DIR, "peer-" + port), this::onLogDurable, String.valueOf(port)) :
+                null;
         this.receivedHeartbeat = false;
-        this.callCount = 0;
-        this.currentTerm = 0;
-        this.commitIndex = 0;
-        this.votedFor = null;
+        this.callCount = new AtomicInteger();
         this.currentRole = RaftRole.FOLLOWER;
-        service = new Service<>(RaftInterface.class, this, port);
-        electionScheduler = Executors.newSingleThreadScheduledExecutor();
-        heartbeatScheduler = Executors.newSingleThreadScheduledExecutor();
+        if (wal == null) {
+            this.logs = new ArrayList<>();
+            this.currentTerm = 0;
+            this.votedFor = null;
+            this.commitIndex = 0;
+        } else {
+            // recover from disk: entries stay in their segments until read, and everything up to
+            // the snapshot is known to be committed
+            this.logs = wal.entries();
+            this.currentTerm = wal.getTerm();
+            this.votedFor = wal.getVotedFor() < 0 ? null : wal.getVotedFor();
+            this.recoveredSnapshot = wal.loadSnapshot();
+            if (recoveredSnapshot != null && (recoveredSnapshot.index > logs.size() ||
+                    logs.get(recoveredSnapshot.index - 1).term != recoveredSnapshot.term)) {
+                // a crash while installing a leader's snapshot left the log it replaces
+                wal.reset(recoveredSnapshot.index);
+            }
+            this.commitIndex = recoveredSnapshot == null ? 0 : Math.min(recoveredSnapshot.index, logs.size());
+            this.lastSnapshotIndex = commitIndex;
+            this.uncommittedBytes = wal.bytesBetween(commitIndex + 1, logs.size());
+        }
+        if (transport == null) {
+            this.service = new Service<>(RaftInterface.class, this, port, false, false, TRANSPORT);
+            // one stub per peer and class, made once rather than on every call
+            RaftInterface[] control = new RaftInterface[num];
+            RaftInterface[] bulk = new RaftInterface[num];
+            for (int peerId = 0; peerId < num; peerId++) {
+                if (peerId == id) continue;
+                control[peerId] = peerStub(RaftInterface.class, getPeerPort(peerId), TrafficClass.CONTROL);
+                bulk[peerId] = peerStub(RaftInterface.class, getPeerPort(peerId), TrafficClass.BULK);
+            }
+            this.transport = (peerId, trafficClass) ->
+                    trafficClass == TrafficClass.CONTROL ? control[peerId] : bulk[peerId];
+        } else {
+            this.service = null;
+            this.transport = transport;
+        }
+        timer = HashedWheelTimer.shared();
         this.nextIndex = new int[num];
         this.matchIndex = new int[num];
         this.electionInterval = getElectionTimeout(200, 400);
+        this.knownLeaderId = -1;
+        this.subscriptions = new CopyOnWriteArrayList<>();
+        this.replicators = new AppendEntriesTask[num];
+        this.progress = new FollowerProgress[num];
+        for (int i = 0; i < num; i++) {
+            this.progress[i] = new FollowerProgress();
+        }
+        this.rejectedProposals = new AtomicLong();
         this.isNodeActivated = false;
         this.replicationOkCount = 0;
-        this.runningTasks = new ArrayList<>();
+        this.lastReplicationContact = new long[num];
     }
 
     @Override
-    public RequestVoteResp RequestVote(int candidateTerm,
-                                       int candidateId,
-                                       int candidateLastLogIndex,
-                                       int candidateLastLogTerm)
+    public synchronized RequestVoteResp RequestVote(int candidateTerm,
+                                                    int candidateId,
+                                                    int candidateLastLogIndex,
+                                                    int candidateLastLogTerm)
             throws RemoteObjectException
     {
         if (candidateTerm > currentTerm) {
@@ -102,12 +226,12 @@ public class RaftPeer implements RaftInterface {
         boolean requestApproved = false;
         boolean isLogOk = (candidateLastLogTerm > lastTerm) ||
                 (candidateLastLogTerm == lastTerm && candidateLastLogIndex >= logs.size());
+        // checked and granted under the monitor, so two candidates of one term cannot both get the vote
         if (candidateTerm == currentTerm && isLogOk && (votedFor == null || votedFor == candidateId)) {
-            synchronized (this) {
-                votedFor = candidateId;
-                requestApproved = true;
-                listenForHeartbeat();
-            }
+            votedFor = candidateId;
+            saveMeta();
+            requestApproved = true;
+            listenForHeartbeat();
         }
         return new RequestVoteResp(currentTerm, requestApproved);
     }
@@ -120,47 +244,220 @@ public class RaftPeer implements RaftInterface {
             int prevLogTerm,
             List<RaftLog> entries,
             int leaderCommit) throws RemoteObjectException
+    {
+        AppendEntriesResp resp = handleAppendEntries(
+                leaderTerm, leaderId, prevLogIndex, prevLogTerm, entries, leaderCommit);
+        if (wal == null || !resp.isSuccess()) {
+            return resp;
+        }
+        // acknowledge only what is on disk; the wait is outside the monitor, so other calls go on
+        try {
+            wal.awaitDurable(resp.getAck());
+        } catch (InterruptedException | IOException e) {
+            throw new RemoteObjectException(e);
+        }
+        synchronized (this) {
+            // a newer leader may have replaced the entries meanwhile; the new term makes the old one step down
+            if (currentTerm != resp.getTerm()) {
+                return new AppendEntriesResp(currentTerm, false, logs.size());
+            }
+        }
+        return resp;
+    }
+
+    // synchronized, so the log cannot change between the prevLog match check and the append
+    private synchronized AppendEntriesResp handleAppendEntries(
+            int leaderTerm,
+            int leaderId,
+            int prevLogIndex,
+            int prevLogTerm,
+            List<RaftLog> entries,
+            int leaderCommit)
     {
         setHeartbeat(true);
         if (leaderTerm >= currentTerm) {
             toFollower(leaderTerm);
+            knownLeaderId = leaderId;
         }
+        // an entry compacted into the snapshot is committed, so it is sure to match the leader's
         boolean isLogMatch = (logs.size() >= prevLogIndex) &&
-                (prevLogIndex == 0 || logs.get(prevLogIndex - 1).term == prevLogTerm);
+                (prevLogIndex == 0 || isCompacted(prevLogIndex) || entryAt(prevLogIndex).term == prevLogTerm);
         if (leaderTerm == currentTerm && isLogMatch) {
             // append entries
             // 3. If an existing entry conflicts with a new one (same index but different terms),
             // delete the existing entry and all that follow it (§5.3)
-            synchronized (this) {
-                if (!entries.isEmpty()) {
-                    int lastLogIndex = getLastLog().index;
-                    while (lastLogIndex != prevLogIndex) {
-                        logs.remove(logs.size() - 1);
-                        lastLogIndex--;
-                    }
+            // batches are capped in size, so a stale or reordered batch may be a prefix of what this
+            // log already holds; entries past a matching batch must be kept, not truncated
+            // likewise entries the snapshot covers are skipped, as they can no longer be compared
+            int next = Math.max(0, Math.min(entries.size(), firstLogIndex() - 1 - prevLogIndex));
+            while (next < entries.size() && prevLogIndex + next < logs.size() &&
+                    logs.get(prevLogIndex + next).term == entries.get(next).term) {
+                next++;
+            }
+            if (next < entries.size()) {
+                boolean conflict = logs.size() > prevLogIndex + next;
+                // the list first: a log recovered from disk reads the entry before each one it
+                // drops back from the segments, so their records must still be there
+                while (logs.size() > prevLogIndex + next) {
+                    uncommittedBytes -= logs.remove(logs.size() - 1).sizeInBytes();
+                }
+                if (wal != null && conflict) {
+                    wal.truncate(prevLogIndex + next + 1);
                 }
                 // 4. Append any new entries not already in the log
-                logs.addAll(entries);
-                // 5. If leaderCommit > commitIndex, set commitIndex = min(leaderCommit, index of last new entry)
-                if (leaderCommit > commitIndex) {
-                    commitIndex = Math.min(leaderCommit, getLastLog().index);
+                for (RaftLog entry: entries.subList(next, entries.size())) {
+                    logs.add(entry);
+                    uncommittedBytes += entry.sizeInBytes();
+                    if (wal != null) wal.append(entry);
                 }
-                return new AppendEntriesResp(currentTerm,true, logs.size());
             }
+            int lastNewIndex = prevLogIndex + entries.size();
+            // 5. If leaderCommit > commitIndex, set commitIndex = min(leaderCommit, index of last new entry)
+            // a stale batch may end below the current commitIndex, which must never move back
+            if (Math.min(leaderCommit, lastNewIndex) > commitIndex) {
+                setCommitIndex(Math.min(leaderCommit, lastNewIndex));
+            }
+            return new AppendEntriesResp(currentTerm,true, lastNewIndex);
+        } else {
+            // tell the leader how long our log is, so it can skip straight past entries we lack
+            return new AppendEntriesResp(currentTerm,false, logs.size());
+        }
+    }
+
+    @Override
+    public InstallSnapshotResp InstallSnapshot(
+            int leaderTerm,
+            int leaderId,
+            int lastIncludedIndex,
+            int lastIncludedTerm,
+            String source) throws RemoteObjectException
+    {
+        setHeartbeat(true);
+        if (leaderTerm >= currentTerm) {
+            toFollower(leaderTerm);
+            knownLeaderId = leaderId;
+        }
+        synchronized (this) {
+            if (leaderTerm != currentTerm) {
+                return new InstallSnapshotResp(currentTerm, 0, false);
+            }
+            // e.g. installed by an earlier call: everything the snapshot covers is committed here
+            if (commitIndex >= lastIncludedIndex) {
+                return new InstallSnapshotResp(currentTerm, 0, true);
+            }
+            if (wal == null) {
+                throw new RemoteObjectException("no write-ahead log to install a snapshot into");
+            }
+            // the fetch runs in the background; the leader calls again to see how far it got
+            SnapshotFetcher fetcher = snapshotFetcher;
+            if (fetcher != null && fetcher.isFor(lastIncludedIndex, lastIncludedTerm) && fetcher.isAlive()) {
+                fetcher.setSource(source);
+            } else {
+                if (fetcher != null) fetcher.cancel();
+                fetcher = new SnapshotFetcher(lastIncludedIndex, lastIncludedTerm,
+                        wal.partialSnapshotPath(lastIncludedIndex, lastIncludedTerm), source,
+                        this::onSnapshotFetched, String.valueOf(port));
+                snapshotFetcher = fetcher;
+                fetcher.start();
+            }
+            return new InstallSnapshotResp(currentTerm, fetcher.getReceived(), false);
+        }
+    }
+
+    /**
+     * called on a SnapshotFetcher's thread once it has the whole snapshot: the snapshot file is
+     * replaced, then the log is made to start from the snapshot and the applier restores it
+     *
+     * @param fetcher   the fetcher, ignored if another one has replaced it
+     */
+    private void onSnapshotFetched(SnapshotFetcher fetcher) {
+        synchronized (this) {
+            if (snapshotFetcher != fetcher) return;
+        }
+        boolean installed;
+        try {
+            // outside the monitor, as it may wait for the applier to finish saving a snapshot
+            installed = wal.installSnapshot(fetcher.partial, fetcher.index, fetcher.term);
+        } catch (IOException e) {
+            // the copy was damaged and dropped; the leader's next call fetches it again
+            installed = false;
+        }
+        synchronized (this) {
+            if (snapshotFetcher == fetcher) snapshotFetcher = null;
+            if (installed) installSnapshot(fetcher.index, fetcher.term);
+        }
+    }
+
+    private synchronized void installSnapshot(int index, int term) {
+        if (commitIndex >= index) return;
+        RaftLog entry = entryAt(index);
+        if (entry == null || entry.term != term) {
+            // the log stops short of the snapshot or conflicts with it, so none of it is of use
+            wal.reset(index);
+        } else {
+            compactLog(index);
+        }
+        commitIndex = index;
+        uncommittedBytes = wal.bytesBetween(index + 1, logs.size());
+        lastSnapshotIndex = index;
+        if (stateMachine == null) {
+            lastApplied = index;
         } else {
-            return new AppendEntriesResp(currentTerm,false, 0);
+            snapshotInstalled = true;
+        }
+        notifyAll();
+        for (CommitSubscription subscription: subscriptions) {
+            subscription.publish(index);
         }
     }
 
     @Override
-    public int GetCommittedCmd(int index) throws RemoteObjectException {
+    public synchronized int GetCommittedCmd(int index) throws RemoteObjectException {
 //        System.out.println("received index: " + index + getPersistentState());
-        for (RaftLog entry: logs) {
-            if (entry.index == index && entry.index <= commitIndex) {
-                return entry.msg;
+        RaftLog entry = entryAt(index);
+        return entry != null && index <= commitIndex ? entry.msg : 0;
+    }
+
+    /**
+     * read a contiguous range of committed entries in one call
+     *
+     * @param from  first index to read, inclusive
+     * @param to    last index to read, inclusive
+     * @return the committed entries in [from, to], cut short at the commit index and after
+     *         MAX_RANGE_ENTRIES entries; empty if `from` is not committed yet
+     */
+    @Override
+    public List<RaftLog> GetCommittedRange(int from, int to) throws RemoteObjectException {
+        synchronized (this) {
+            int first = Math.max(from, firstLogIndex());
+            int last = committedRangeEnd(first, to);
+            // copied, so the reply does not serialize a view of the live log
+            return first > last ? new ArrayList<>() : new ArrayList<>(logs.subList(first - 1, last));
+        }
+    }
+
+    /**
+     * GetCommittedRange for int commands, returning only each entry's command as GetCommittedCmd does
+     *
+     * @param from  first index to read, inclusive
+     * @param to    last index to read, inclusive
+     * @return the commands of the committed entries in [from, to], limited as in GetCommittedRange
+     */
+    @Override
+    public int[] GetCommittedCmds(int from, int to) throws RemoteObjectException {
+        synchronized (this) {
+            int first = Math.max(from, firstLogIndex());
+            int last = committedRangeEnd(first, to);
+            int[] cmds = new int[Math.max(0, last - first + 1)];
+            for (int i = 0; i < cmds.length; i++) {
+                cmds[i] = logs.get(first - 1 + i).msg;
             }
+            return cmds;
         }
-        return 0;
+    }
+
+    private int committedRangeEnd(int first, int to) {
+        return (int) Math.min(Math.min(to, commitIndex), (long) first + MAX_RANGE_ENTRIES - 1);
     }
 
     @Override
@@ -168,63 +465,481 @@ public class RaftPeer implements RaftInterface {
         if (!isNodeActivated) {
             throw new RemoteObjectException("node deactivated");
         }
-        return new StatusReport(getLastLog().index, currentTerm, currentRole == RaftRole.LEADER, callCount);
+        int leaderId = knownLeaderId;
+        return new StatusReport(getLastLog().index, currentTerm, currentRole == RaftRole.LEADER,
+                callCount.get(), leaderId, leaderId < 0 ? null : getPeerPort(leaderId));
     }
 
     @Override
     public StatusReport NewCommand(int command) throws RemoteObjectException {
-        if (currentRole == RaftRole.LEADER) {
-            addNewCommandToLog(command);
-            for (int peerId = 0; peerId < numOfPeers; peerId++) {
-                if (peerId == nodeId || getLastLog().index < nextIndex[peerId]) continue;
-                AppendEntriesTask th = new AppendEntriesTask(this, peerId);
-                th.start();
-                runningTasks.add(th);
+        boolean appended = false;
+        boolean busy = false;
+        synchronized (this) {
+            if (currentRole == RaftRole.LEADER) {
+                busy = !admit(1, RaftLog.HEADER_BYTES);
+                if (!busy) {
+                    addNewCommandToLog(command);
+                    replicateToFollowers();
+                    appended = true;
+                }
             }
         }
-        try {
-            Thread.sleep(100);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        // a follower or a busy leader answers right away; only an appended command waits
+        if (appended) {
+            try {
+                Thread.sleep(REPLICATION_TASK_LIFETIME);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        StatusReport status = GetStatus();
+        status.busy = busy;
+        return status;
+    }
+
+    /**
+     * append a batch of commands to the log in one step and replicate them in the same round.
+     * unlike NewCommand this returns as soon as the commands are appended; the caller can watch
+     * for them to commit with GetCommittedCmd.
+     *
+     * @param commands  commands to append, in order
+     * @return the indexes assigned to the commands, or an empty range and a leader hint if this
+     *         peer is not the leader
+     */
+    @Override
+    public IndexRange NewCommands(int[] commands) throws RemoteObjectException {
+        if (!isNodeActivated) {
+            throw new RemoteObjectException("node deactivated");
+        }
+        synchronized (this) {
+            int first = getLastLog().index + 1;
+            if (currentRole != RaftRole.LEADER) {
+                int leaderId = knownLeaderId;
+                return new IndexRange(first, first - 1, currentTerm, false,
+                        leaderId, leaderId < 0 ? null : getPeerPort(leaderId));
+            }
+            if (!admit(commands.length, (long) commands.length * RaftLog.HEADER_BYTES)) {
+                IndexRange busy = new IndexRange(first, first - 1, currentTerm, true, nodeId, getPeerPort(nodeId));
+                busy.busy = true;
+                return busy;
+            }
+            for (int command: commands) {
+                addNewCommandToLog(command);
+            }
+            if (commands.length > 0) {
+                replicateToFollowers();
+            }
+            return new IndexRange(first, first + commands.length - 1, currentTerm, true,
+                    nodeId, getPeerPort(nodeId));
+        }
+    }
+
+    /**
+     * append an opaque command to the log if this peer is the leader, and start replicating it.
+     * the command is handed to the StateMachine once it is committed.
+     *
+     * @param data  command bytes, interpreted only by the StateMachine
+     * @return the new log entry, carrying its index and term, or null if this peer is not the leader
+     * @throws RemoteObjectException if the leader is busy, see admit
+     */
+    RaftLog proposeData(byte[] data) throws RemoteObjectException {
+        synchronized (this) {
+            if (currentRole != RaftRole.LEADER) {
+                return null;
+            }
+            if (!admit(1, RaftLog.HEADER_BYTES + data.length)) {
+                throw new RemoteObjectException("leader busy, retry later");
+            }
+            RaftLog entry = addNewEntryToLog(data);
+            replicateToFollowers();
+            return entry;
+        }
+    }
+
+    /**
+     * admission control for proposals on the leader: new entries are refused while the log holds
+     * MAX_UNCOMMITTED_ENTRIES entries or MAX_UNCOMMITTED_BYTES bytes past commitIndex, so that an
+     * overloaded leader sheds load with a fast "busy" answer instead of growing without bound.
+     * with nothing uncommitted, a proposal is always admitted, however large.
+     *
+     * @param entries   number of entries to append
+     * @param bytes     their size, see RaftLog.sizeInBytes
+     * @return true if the entries may be appended
+     */
+    private synchronized boolean admit(int entries, long bytes) {
+        int uncommitted = getLastLog().index - commitIndex;
+        if (uncommitted == 0 || (uncommitted + entries <= MAX_UNCOMMITTED_ENTRIES &&
+                uncommittedBytes + bytes <= MAX_UNCOMMITTED_BYTES)) {
+            return true;
+        }
+        rejectedProposals.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return number of entries past commitIndex, i.e. the depth of the proposal queue on a leader
+     */
+    public synchronized int getUncommittedEntries() {
+        return getLastLog().index - commitIndex;
+    }
+
+    /**
+     * @return total size of the entries past commitIndex
+     */
+    public synchronized long getUncommittedBytes() {
+        return uncommittedBytes;
+    }
+
+    /**
+     * @return number of proposals refused by admission control since the peer started
+     */
+    public long getRejectedProposals() {
+        return rejectedProposals.get();
+    }
+
+    /**
+     * @return number of followers with an AppendEntriesTask running
+     */
+    public synchronized int getActiveReplicators() {
+        int active = 0;
+        for (AppendEntriesTask task: replicators) {
+            if (task != null) active++;
+        }
+        return active;
+    }
+
+    private void replicateToFollowers() {
+        for (int peerId = 0; peerId < numOfPeers; peerId++) {
+            if (peerId == nodeId || getLastLog().index < nextIndex[peerId]) continue;
+            replicateTo(peerId);
         }
-        for (AppendEntriesTask t: runningTasks) {
-            t.shutdown();
+        // with no followers to answer, this peer's own copy is the majority
+        if (numOfPeers == 1) {
+            advanceCommitIndex();
+        }
+    }
+
+    /**
+     * make sure an AppendEntriesTask is running for one follower.  there is at most one per
+     * follower: a running task picks up new entries on its own, so it only gets its lifetime
+     * extended.  a task is shut down after REPLICATION_TASK_LIFETIME without an accepted batch,
+     * and later heartbeats pick up whatever it did not finish
+     *
+     * @param peerId    id of the follower
+     */
+    synchronized void replicateTo(int peerId) {
+        AppendEntriesTask running = replicators[peerId];
+        if (running != null && running.extend()) {
+            return;
+        }
+        AppendEntriesTask th = new AppendEntriesTask(this, peerId);
+        replicators[peerId] = th;
+        th.setLifetime(timer.schedule(th::shutdown, REPLICATION_TASK_LIFETIME, 0));
+        th.start();
+    }
+
+    /**
+     * called by a follower's AppendEntriesTask after a successful batch; the task may finish once
+     * the follower holds the whole log, which is decided under the monitor so that replicateTo
+     * never extends a task that has already decided to stop
+     *
+     * @param task  the task asking
+     * @param ack   the last index the follower acknowledged
+     * @return true if the task is done and has been shut down
+     */
+    synchronized boolean finishReplication(AppendEntriesTask task, int ack) {
+        if (ack < getLastLog().index) {
+            return false;
+        }
+        task.shutdown();
+        replicatorExited(task);
+        return true;
+    }
+
+    synchronized void replicatorExited(AppendEntriesTask task) {
+        if (replicators[task.followerId] == task) {
+            replicators[task.followerId] = null;
         }
-        return GetStatus();
     }
 
     synchronized RaftLog addNewCommandToLog(int command) {
-        RaftLog entry = new RaftLog(command, currentTerm, logs.size() + 1);
+        return appendToLog(new RaftLog(command, currentTerm, logs.size() + 1));
+    }
+
+    synchronized RaftLog addNewEntryToLog(byte[] data) {
+        return appendToLog(new RaftLog(data, currentTerm, logs.size() + 1));
+    }
+
+    private synchronized RaftLog appendToLog(RaftLog entry) {
         logs.add(entry);
+        uncommittedBytes += entry.sizeInBytes();
         nextIndex[nodeId]++;
         replicationOkCount = 0;
+        // the leader's own copy counts towards a majority once it is durable, see onLogDurable;
+        // the write is only buffered here, so the entry goes out to followers while it is forced
+        if (wal != null) {
+            wal.append(entry);
+        } else {
+            matchIndex[nodeId] = entry.index;
+        }
         return entry;
     }
 
-    synchronized List<RaftLog> getEntriesToAppend(int prevLogIndex) {
+    /**
+     * called by the WriteAheadLog's flusher once every entry up to `durableIndex` is on disk
+     *
+     * @param durableIndex  highest index forced to disk
+     */
+    private void onLogDurable(int durableIndex) {
+        synchronized (this) {
+            if (currentRole != RaftRole.LEADER) return;
+            matchIndex[nodeId] = Math.max(matchIndex[nodeId], Math.min(durableIndex, getLastLog().index));
+            advanceCommitIndex();
+        }
+    }
+
+    /**
+     * collect the entries following `prevLogIndex` for one AppendEntries call, capped at
+     * MAX_BATCH_ENTRIES entries and MAX_BATCH_BYTES of payload so that a large backlog is shipped
+     * in several rounds instead of one huge call; the first entry is always included
+     *
+     * @param prevLogIndex  index of the entry preceding the batch
+     * @return the batch, possibly empty
+     */
+    List<RaftLog> getEntriesToAppend(int prevLogIndex) {
+        return getEntriesToAppend(prevLogIndex, MAX_BATCH_ENTRIES, MAX_BATCH_BYTES);
+    }
+
+    /**
+     * as above, within a follower's flow-control window; the first entry is included whenever
+     * maxEntries allows any
+     *
+     * @param prevLogIndex  index of the entry preceding the batch
+     * @param maxEntries    most entries to collect, 0 for none
+     * @param maxBytes      most payload bytes to collect
+     * @return the batch, possibly empty, and always empty if the follower needs the snapshot
+     */
+    synchronized List<RaftLog> getEntriesToAppend(int prevLogIndex, int maxEntries, long maxBytes) {
         List<RaftLog> entriesToAppend = new ArrayList<>();
-        for (RaftLog entry: logs) {
-            if (entry.index > prevLogIndex) {
-                entriesToAppend.add(entry);
-            }
+        if (needsSnapshot(prevLogIndex)) {
+            return entriesToAppend;
+        }
+        long bytes = 0;
+        for (int i = prevLogIndex; i < logs.size() && entriesToAppend.size() < maxEntries; i++) {
+            RaftLog entry = logs.get(i);
+            bytes += entry.sizeInBytes();
+            if (bytes > maxBytes && !entriesToAppend.isEmpty()) break;
+            entriesToAppend.add(entry);
         }
         return entriesToAppend;
     }
 
-    synchronized void updateCommitIndex() {
-        for (int N = getLastLog().index; N > commitIndex; N--) {
-            int count = 1;
-            for (int j = 0; j < numOfPeers; j++) {
-                if (matchIndex[j] >= N) {
-                    count++;
+    private synchronized void setCommitIndex(int index) {
+        if (wal != null) {
+            // recovered entries live on disk, so take their sizes from the segment index instead
+            uncommittedBytes -= wal.bytesBetween(commitIndex + 1, index);
+        } else {
+            for (int i = commitIndex + 1; i <= index; i++) {
+                uncommittedBytes -= entryAt(i).sizeInBytes();
+            }
+        }
+        commitIndex = index;
+        // wake the applier
+        notifyAll();
+        for (CommitSubscription subscription: subscriptions) {
+            subscription.publish(index);
+        }
+    }
+
+    /**
+     * watch this peer's commits: every entry from `fromIndex` on is pushed to `listener` once it is
+     * committed here, by the subscription's own delivery thread
+     *
+     * @param fromIndex     index of the first entry to deliver; older commits are delivered first,
+     *                      and if they are compacted already the subscription is closed as overrun
+     * @param bufferLimit   entries buffered for a slow listener before the subscription pauses
+     * @param listener      receiver of the entries, possibly a stub of a remote consumer
+     * @return the subscription, used to close it and to watch its progress
+     */
+    public CommitSubscription subscribe(int fromIndex, int bufferLimit, CommitListener listener) {
+        CommitSubscription subscription = new CommitSubscription(this, fromIndex, bufferLimit, listener);
+        subscriptions.add(subscription);
+        subscription.start();
+        return subscription;
+    }
+
+    void unsubscribe(CommitSubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    /**
+     * attach the state machine that committed entries are applied to, in log order, by a dedicated
+     * applier thread; lastApplied tracks its progress
+     *
+     * @param stateMachine  the state machine, attached at most once and before activation
+     */
+    public synchronized void setStateMachine(StateMachine stateMachine) {
+        if (this.stateMachine != null) {
+            throw new IllegalStateException("state machine already attached");
+        }
+        this.stateMachine = stateMachine;
+        if (recoveredSnapshot != null && recoveredSnapshot.index <= commitIndex) {
+            stateMachine.restore(recoveredSnapshot.state);
+            lastApplied = recoveredSnapshot.index;
+        }
+        recoveredSnapshot = null;
+        Thread applier = new Thread(this::applyCommitted, "raft-apply-" + port);
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    private void applyCommitted() {
+        while (true) {
+            RaftLog entry;
+            boolean restore;
+            synchronized (this) {
+                while (lastApplied >= commitIndex && !snapshotInstalled) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                restore = snapshotInstalled;
+                snapshotInstalled = false;
+                entry = restore ? null : logs.get(lastApplied);
+            }
+            if (restore) {
+                // a leader's snapshot took the place of the entries up to its index
+                WriteAheadLog.Snapshot snapshot = wal.loadSnapshot();
+                stateMachine.restore(snapshot.state);
+                synchronized (this) {
+                    lastApplied = snapshot.index;
                 }
+                continue;
             }
-            if (count >= (numOfPeers + 1) / 2 && (N>0 && logs.get(N - 1).term == currentTerm)) {
-                commitIndex = Math.max(commitIndex, N);
-                matchIndex[nodeId] = commitIndex;
-                break;
+            stateMachine.apply(entry);
+            synchronized (this) {
+                lastApplied = entry.index;
+            }
+            maybeSnapshot(entry);
+        }
+    }
+
+    /**
+     * on the applier thread, between applies: save the state machine every SNAPSHOT_INTERVAL entries
+     * so that a restarted peer need not replay its whole log, and compact the log it covers.  a
+     * state machine that forks is saved by a background thread instead, so applies never wait on
+     * the disk, and only the pages changed since the last snapshot are written.  a
+     * snapshot never covers an entry that is not yet durable, as recovery would find the snapshot
+     * ahead of its log
+     *
+     * @param applied   the entry just applied
+     */
+    private void maybeSnapshot(RaftLog applied) {
+        if (wal == null || applied.index - Math.max(lastSnapshotIndex, failedSnapshotIndex) < SNAPSHOT_INTERVAL ||
+                applied.index > wal.getDurableIndex()) {
+            return;
+        }
+        if (snapshotWriter != null && snapshotWriter.isAlive()) return;
+        PagedState frozen = stateMachine.fork();
+        if (frozen != null) {
+            // the pages are written while the applier goes on; the next snapshot waits for this one
+            snapshotWriter = new Thread(() -> saveSnapshot(applied, frozen), "raft-snapshot-" + port);
+            snapshotWriter.setDaemon(true);
+            snapshotWriter.start();
+            return;
+        }
+        byte[] state = stateMachine.snapshot();
+        if (state == null) return;
+        try {
+            wal.saveSnapshot(applied.index, applied.term, state);
+        } catch (UncheckedIOException e) {
+            snapshotFailed(applied, e);
+            return;
+        }
+        snapshotFailure = null;
+        lastSnapshotIndex = applied.index;
+        synchronized (this) {
+            compactLog(applied.index);
+        }
+    }
+
+    // on the snapshot writer thread: save a forked state as of `applied`, then compact as above
+    private void saveSnapshot(RaftLog applied, PagedState frozen) {
+        try {
+            wal.saveSnapshot(applied.index, applied.term, frozen);
+        } catch (UncheckedIOException e) {
+            snapshotFailed(applied, e);
+            return;
+        }
+        snapshotFailure = null;
+        synchronized (this) {
+            lastSnapshotIndex = Math.max(lastSnapshotIndex, applied.index);
+            compactLog(applied.index);
+        }
+    }
+
+    // the log stays uncompacted past `applied` until a later snapshot succeeds
+    private void snapshotFailed(RaftLog applied, UncheckedIOException e) {
+        if (snapshotFailure == null) {
+            System.err.println("peer " + port + ": cannot save snapshot at index " + applied.index + ": " + e.getCause());
+        }
+        snapshotFailure = e.getCause();
+        failedSnapshotIndex = applied.index;
+    }
+
+    /**
+     * @return why the last snapshot could not be saved, or null if it was saved or none was due
+     */
+    IOException getSnapshotFailure() {
+        return snapshotFailure;
+    }
+
+    // holding the monitor: drop the log up to `index`, but not entries an open subscription has yet
+    // to take, so that it still loses nothing.  a subscription more than MAX_SUBSCRIPTION_LAG entries
+    // behind, e.g. one paused by a listener that stopped reading, would pin the log forever, so it
+    // is closed as overrun instead and the log is compacted past it
+    private void compactLog(int index) {
+        int keepFrom = index;
+        for (CommitSubscription subscription: subscriptions) {
+            int taken = subscription.getNextToBuffer() - 1;
+            if (index - taken > MAX_SUBSCRIPTION_LAG) {
+                subscription.overrun();
+            } else {
+                keepFrom = Math.min(keepFrom, taken);
             }
         }
+        wal.compact(keepFrom);
+    }
+
+    // holding the monitor: term and vote must be on disk before this peer acts on them
+    private void saveMeta() {
+        if (wal != null) {
+            wal.saveMeta(currentTerm, votedFor == null ? -1 : votedFor);
+        }
+    }
+
+    public synchronized int getLastApplied() {
+        return lastApplied;
+    }
+
+    synchronized void updateCommitIndex() {
+        advanceCommitIndex();
+    }
+
+    private synchronized void advanceCommitIndex() {
+        if (currentRole != RaftRole.LEADER) return;
+        // the highest index a majority holds, counting this peer's own durable copy like any other
+        // replica: the (n/2 + 1)-th largest matchIndex
+        int[] sorted = matchIndex.clone();
+        Arrays.sort(sorted);
+        int N = Math.min(sorted[numOfPeers - (numOfPeers / 2 + 1)], getLastLog().index);
+        // only entries of the current term are committed by counting replicas (§5.4.2); terms never
+        // decrease along the log, so if entry N is older, so is every entry before it
+        if (N > commitIndex && entryAt(N).term == currentTerm) {
+            setCommitIndex(N);
+        }
     }
 
 
@@ -255,7 +970,9 @@ public class RaftPeer implements RaftInterface {
      */
     public void Activate() {
         try {
-            this.service.start();
+            if (service != null) {
+                this.service.start();
+            }
             this.isNodeActivated = true;
             listenForHeartbeat();
             if (currentRole == RaftRole.LEADER) {
@@ -282,44 +999,59 @@ public class RaftPeer implements RaftInterface {
      * TODO: implement the `Deactivate` method
      */
     public void Deactivate() {
-        this.service.stop();
+        if (service != null) {
+            this.service.stop();
+        }
         this.isNodeActivated = false;
+        synchronized (this) {
+            if (snapshotSender != null) {
+                snapshotSender.close();
+                snapshotSender = null;
+            }
+            if (snapshotFetcher != null) {
+                snapshotFetcher.cancel();
+                snapshotFetcher = null;
+            }
+        }
         if (electionTimer != null) {
-            electionTimer.cancel(true);
+            electionTimer.cancel();
         }
         if (heartbeatTimer != null) {
-            heartbeatTimer.cancel(true);
+            heartbeatTimer.cancel();
         }
     }
 
     private void listenForHeartbeat() {
-        if (electionTimer != null) electionTimer.cancel(true);
-        electionTimer = electionScheduler.scheduleAtFixedRate(
-                new ElectionTask(this),
-                electionInterval,
-                electionInterval,
-                TimeUnit.MILLISECONDS);
+        // resetting the live timeout is O(1); only re-create it after Deactivate or toLeader cancelled it
+        if (electionTimer != null && !electionTimer.isCancelled()) {
+            electionTimer.reset();
+            return;
+        }
+        // becoming a candidate forces the new term and vote to disk under the monitor, which must
+        // not tie up the worker pool the other peers' timers run on
+        electionTimer = timer.schedule(new ElectionTask(this), electionInterval, electionInterval, wal != null);
     }
 
     private void sendHeartbeat() {
-        if (heartbeatTimer != null) heartbeatTimer.cancel(true);
-        this.heartbeatTimer = this.heartbeatScheduler.scheduleAtFixedRate(
-                new HeartbeatTask(this),
-                0,
-                100,
-                TimeUnit.MILLISECONDS);
+        if (heartbeatTimer != null) heartbeatTimer.cancel();
+        if (coalescedHeartbeats) return;
+        this.heartbeatTimer = timer.schedule(new HeartbeatTask(this), 0, HEARTBEAT_INTERVAL, true);
     }
 
-    public synchronized void updateNextIndexAndMatchIndex(
+    public void updateNextIndexAndMatchIndex(
             int followerId,
             int replicatedLogSize,
             boolean isReplicationOk)
     {
-        if (isReplicationOk) {
-            nextIndex[followerId] = replicatedLogSize + 1;
-            matchIndex[followerId] = replicatedLogSize;
-        } else {
-            if (nextIndex[followerId] > 1) nextIndex[followerId]--;
+        synchronized (this) {
+            if (isReplicationOk) {
+                nextIndex[followerId] = replicatedLogSize + 1;
+                matchIndex[followerId] = Math.max(matchIndex[followerId], replicatedLogSize);
+            } else {
+                // a rejection carries the follower's log length: nothing past it can match
+                int next = Math.min(nextIndex[followerId] - 1, replicatedLogSize + 1);
+                nextIndex[followerId] = Math.max(1, next);
+            }
         }
     }
 
@@ -368,13 +1100,41 @@ public class RaftPeer implements RaftInterface {
         return random.nextInt(hi - lo) + lo;
     }
 
+    /**
+     * @return id of the current leader as far as this peer knows, or -1 if it does not know one
+     */
+    public int getKnownLeaderId() {
+        return knownLeaderId;
+    }
+
     public String getPeerPort(int peerId) {
         if (peerId < 0 || peerId >= numOfPeers) {
             throw new RuntimeException(String.format("peer id %d does not exist", peerId));
         }
-        String ip = "127.0.0.1:";
-        int peerPort = peerId > nodeId ? port + (peerId - nodeId) : port - (nodeId - peerId);
-        return ip + peerPort;
+        return peerAddresses[peerId];
+    }
+
+    /**
+     * @param peerId        id of another peer in this peer's group
+     * @param trafficClass  CONTROL for heartbeats and votes, BULK for replication
+     * @return the stub used to make remote calls to that peer
+     */
+    RaftInterface getPeerStub(int peerId, TrafficClass trafficClass) {
+        return transport.stub(peerId, trafficClass);
+    }
+
+    /**
+     * @return the deadline of calls to other peers of the given class, in milliseconds
+     */
+    static int rpcTimeout(TrafficClass trafficClass) {
+        return trafficClass == TrafficClass.CONTROL ? CONTROL_RPC_TIMEOUT : BULK_RPC_TIMEOUT;
+    }
+
+    /**
+     * @return a stub for calls of the given class to another peer or host, with their deadline and TRANSPORT
+     */
+    static <T> T peerStub(Class<T> c, String addr, TrafficClass trafficClass) {
+        return StubFactory.create(c, addr, false, false, trafficClass, rpcTimeout(trafficClass), TRANSPORT);
     }
 
     public void toFollower(int newTerm) {
@@ -382,12 +1142,16 @@ public class RaftPeer implements RaftInterface {
             System.out.println("BECOME FOLLOWER: " + getPersistentState());
         }
         synchronized (this) {
+            if (newTerm != currentTerm) {
+                knownLeaderId = -1;
+            }
             currentTerm = newTerm;
             votedFor = null;
+            saveMeta();
             currentRole = RaftRole.FOLLOWER;
             listenForHeartbeat();
             if (heartbeatTimer != null) {
-                heartbeatTimer.cancel(true);
+                heartbeatTimer.cancel();
             }
         }
     }
@@ -399,10 +1163,12 @@ public class RaftPeer implements RaftInterface {
         synchronized (this) {
             currentRole = RaftRole.CANDIDATE;
             currentTerm++;
+            knownLeaderId = -1;
             votedFor = nodeId;
+            saveMeta();
             listenForHeartbeat();
             if (heartbeatTimer != null) {
-                heartbeatTimer.cancel(true);
+                heartbeatTimer.cancel();
             }
         }
     }
@@ -413,11 +1179,198 @@ public class RaftPeer implements RaftInterface {
         }
         synchronized (this) {
             currentRole = RaftRole.LEADER;
+            knownLeaderId = nodeId;
             Arrays.fill(nextIndex, getLastLog().index + 1);
             Arrays.fill(matchIndex, 0);
+            matchIndex[nodeId] = wal == null ? getLastLog().index :
+                    Math.min(wal.getDurableIndex(), getLastLog().index);
+            Arrays.fill(lastReplicationContact, 0);
+            for (FollowerProgress p: progress) {
+                p.reset();
+            }
             sendHeartbeat();
-            this.electionTimer.cancel(true);
+            this.electionTimer.cancel();
+        }
+    }
+
+    /**
+     * become leader once a majority has granted its vote, unless the election was lost meanwhile:
+     * votes of an old round arrive late, as ElectionTask does not wait for them
+     *
+     * @param electionTerm  term the votes were granted in
+     */
+    synchronized void winElection(int electionTerm) {
+        if (currentRole == RaftRole.CANDIDATE && currentTerm == electionTerm) {
+            toLeader();
+        }
+    }
+
+    HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * @param followerId    id of a follower
+     * @return the flow control state for replicating to the follower
+     */
+    FollowerProgress getProgress(int followerId) {
+        return progress[followerId];
+    }
+
+    /**
+     * record that a follower answered a replication round, which already resets its election timer
+     *
+     * @param followerId    id of the follower that responded
+     */
+    void recordReplicationContact(int followerId) {
+        synchronized (this) {
+            lastReplicationContact[followerId] = System.nanoTime();
+        }
+    }
+
+    /**
+     * a successful heartbeat proves the follower's log matches ours up to the heartbeat's prevLogIndex
+     *
+     * @param followerId    id of the follower that accepted the heartbeat
+     * @param prevLogIndex  prevLogIndex the heartbeat was sent with
+     */
+    void recordHeartbeatMatch(int followerId, int prevLogIndex) {
+        synchronized (this) {
+            matchIndex[followerId] = Math.max(matchIndex[followerId], prevLogIndex);
+        }
+    }
+
+    /**
+     * @param followerId    id of a follower
+     * @return true if the follower is known to hold our whole log, so it can be kept alive by a
+     *         coalesced heartbeat that carries no log position
+     */
+    synchronized boolean isCaughtUp(int followerId) {
+        int lastLogIndex = getLastLog().index;
+        return matchIndex[followerId] == lastLogIndex && nextIndex[followerId] == lastLogIndex + 1;
+    }
+
+    /**
+     * @param followerId    id of a follower
+     * @return the commit index that is safe to send to the follower without a log consistency check
+     */
+    synchronized int getCommitIndexFor(int followerId) {
+        return Math.min(commitIndex, matchIndex[followerId]);
+    }
+
+    /**
+     * hand this group's heartbeats over to a node-level HeartbeatAggregator instead of HeartbeatTask
+     */
+    void setCoalescedHeartbeats(boolean coalesced) {
+        this.coalescedHeartbeats = coalesced;
+    }
+
+    /**
+     * handle one entry of a coalesced heartbeat, the equivalent of an empty AppendEntries whose
+     * leader commit has already been capped at what this follower is known to hold
+     *
+     * @param leaderTerm    leader's term
+     * @param leaderId      leader's id
+     * @param leaderCommit  leader's commit index, capped at this follower's match index
+     * @return this peer's current term, so a stale leader can step down
+     */
+    int onCoalescedHeartbeat(int leaderTerm, int leaderId, int leaderCommit) throws RemoteObjectException {
+        setHeartbeat(true);
+        if (leaderTerm >= currentTerm) {
+            toFollower(leaderTerm);
+            knownLeaderId = leaderId;
         }
+        synchronized (this) {
+            if (leaderTerm == currentTerm && leaderCommit > commitIndex) {
+                setCommitIndex(Math.min(leaderCommit, getLastLog().index));
+            }
+            return currentTerm;
+        }
+    }
+
+    /**
+     * a heartbeat is redundant for followers that were reached by AppendEntriesTask within the
+     * last heartbeat interval, so HeartbeatTask uses this to skip them
+     *
+     * @param followerId    id of the follower to check
+     * @return true if the follower has been contacted within the heartbeat interval
+     */
+    synchronized boolean hasRecentReplicationContact(int followerId) {
+        long last = lastReplicationContact[followerId];
+        return last != 0 &&
+                System.nanoTime() - last < TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_INTERVAL);
+    }
+
+    /**
+     * @param index     log index, starting from 1
+     * @return the term of the entry at `index`, 0 for the empty prefix at index 0, or -1 if the
+     *         entry was compacted away, which no follower's entry matches
+     */
+    synchronized int getLogTerm(int index) {
+        if (index == 0) return 0;
+        RaftLog entry = entryAt(index);
+        return entry == null ? -1 : entry.term;
+    }
+
+    /**
+     * the log is stored densely from index 1, so an entry is found by position instead of a scan
+     *
+     * @param index     log index, starting from 1
+     * @return the entry at `index`, or null if the log has no such entry, or no longer has it since
+     *         it was compacted into the snapshot
+     */
+    synchronized RaftLog entryAt(int index) {
+        return index >= 1 && index <= logs.size() && !isCompacted(index) ? logs.get(index - 1) : null;
+    }
+
+    // holding the monitor
+    private boolean isCompacted(int index) {
+        return wal != null && wal.isCompacted(index);
+    }
+
+    /**
+     * @return index of the first entry the log still holds, past the entries compacted into the
+     *         snapshot
+     */
+    public synchronized int firstLogIndex() {
+        return wal == null ? 1 : wal.firstIndex();
+    }
+
+    /**
+     * @param prevLogIndex  index of the entry preceding those a follower needs next
+     * @return true if that entry's term, or any entry after it, was compacted away, so the follower
+     *         can only catch up by installing the snapshot
+     */
+    synchronized boolean needsSnapshot(int prevLogIndex) {
+        return wal != null && (prevLogIndex + 1 < wal.firstIndex() || wal.isCompacted(prevLogIndex));
+    }
+
+    /**
+     * @return index of the last entry covered by the latest snapshot this peer saved or installed,
+     *         or 0 if there is none
+     */
+    public int getSnapshotIndex() {
+        return lastSnapshotIndex;
+    }
+
+    /**
+     * @return index and term of the last entry this peer's snapshot covers, for InstallSnapshot
+     */
+    WriteAheadLog.Snapshot getSnapshot() {
+        return wal.getSnapshot();
+    }
+
+    /**
+     * @return "host:port" that followers fetch this peer's snapshot from; the SnapshotSender is
+     *         started on first use, on the host of this peer's own address
+     */
+    synchronized String getSnapshotSource() {
+        if (snapshotSender == null) {
+            String address = getPeerPort(nodeId);
+            snapshotSender = new SnapshotSender(address.substring(0, address.lastIndexOf(':')),
+                    wal.snapshotStore(), String.valueOf(port));
+        }
+        return snapshotSender.getAddress();
     }
 
     public RaftLog getLastLog() {
@@ -430,15 +1383,11 @@ public class RaftPeer implements RaftInterface {
     }
 
     public void setHeartbeat(boolean isHeartbeatReceived) {
-        synchronized (this) {
-            receivedHeartbeat = isHeartbeatReceived;
-        }
+        receivedHeartbeat = isHeartbeatReceived;
     }
 
     public void increaseRpcCallCount() {
-        synchronized (this) {
-            callCount++;
-        }
+        callCount.incrementAndGet();
     }
 
     public boolean isHeartbeatReceived() {
@@ -465,12 +1414,17 @@ public class RaftPeer implements RaftInterface {
         return commitIndex;
     }
 
-    public int[] getNextIndex() {
-        return nextIndex;
+    // copies: the arrays change under the monitor while the caller reads them
+    public synchronized int[] getNextIndex() {
+        return nextIndex.clone();
+    }
+
+    public synchronized int[] getMatchIndex() {
+        return matchIndex.clone();
     }
 
-    public int[] getMatchIndex() {
-        return matchIndex;
+    synchronized int getNextIndex(int followerId) {
+        return nextIndex[followerId];
     }
 
     public int getReplicationOkCount() {
@@ -0,0 +1,24 @@
+package raft;
+
+import remote.TrafficClass;
+
+/**
+ * RaftTransport supplies the stubs a RaftPeer uses to call the other peers of its group
+ *  -- a stand-alone RaftPeer creates RaftInterface stubs with StubFactory for its peers' ports
+ *  -- a RaftPeer hosted by a MultiRaftHost routes through the host's shared per-node stubs instead
+ *  -- heartbeats and votes go through CONTROL stubs and replication through BULK ones, so a peer's
+ *     Service reads them ahead of large AppendEntries batches, see remote.TrafficClass
+ *  -- every call has a deadline, see RaftPeer.rpcTimeout, so a stalled peer cannot hold up an
+ *     election or a heartbeat round
+ *  -- with -Draft.transport=unix, peers on the same host call each other over Unix domain sockets,
+ *     and with in_process or in_process_copy, peers in the same JVM call each other's methods
+ *     directly, see remote.Transport
+ */
+public interface RaftTransport {
+    /**
+     * @param peerId        id of the peer to call
+     * @param trafficClass  class of the calls the stub is for
+     * @return a stub for the given peer
+     */
+    RaftInterface stub(int peerId, TrafficClass trafficClass);
+}
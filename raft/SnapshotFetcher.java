@@ -0,0 +1,129 @@
+package raft;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * SnapshotFetcher copies one leader snapshot, named by the index and term of its last entry, from
+ * a SnapshotSender into a partial file on a follower
+ *  -- the partial file is appended to straight from the socket with FileChannel.transferFrom
+ *  -- a broken connection is retried after RETRY_INTERVAL, asking for the bytes past what the file
+ *     already holds, so nothing is sent twice; a fetcher started later for the same snapshot, e.g.
+ *     after a restart, resumes from the same file
+ *  -- the fetcher gives up if the sender no longer has that snapshot; the leader then offers its
+ *     newer one
+ */
+class SnapshotFetcher extends Thread {
+    static final int RETRY_INTERVAL = 100;
+
+    final int index;
+    final int term;
+    final Path partial;
+    private volatile String source;
+    private volatile long received;
+    private volatile boolean cancelled;
+    private final Consumer<SnapshotFetcher> onComplete;
+
+    /**
+     * @param index         index of the snapshot's last entry
+     * @param term          term of that entry
+     * @param partial       file to fetch into, see WriteAheadLog.partialSnapshotPath
+     * @param source        "host:port" of the leader's SnapshotSender
+     * @param onComplete    called on the fetcher's thread once the whole file is on disk
+     * @param name          used to name the thread
+     */
+    SnapshotFetcher(int index, int term, Path partial, String source, Consumer<SnapshotFetcher> onComplete, String name) {
+        super("raft-snapshot-fetch-" + name);
+        setDaemon(true);
+        this.index = index;
+        this.term = term;
+        this.partial = partial;
+        this.source = source;
+        this.onComplete = onComplete;
+    }
+
+    /**
+     * @param source    where to fetch from on the next connection, as the leader last said
+     */
+    void setSource(String source) {
+        this.source = source;
+    }
+
+    /**
+     * @return bytes of the snapshot on disk so far
+     */
+    long getReceived() {
+        return received;
+    }
+
+    boolean isFor(int index, int term) {
+        return this.index == index && this.term == term;
+    }
+
+    /**
+     * stop fetching, leaving the partial file for a later fetch of the same snapshot
+     */
+    void cancel() {
+        cancelled = true;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        while (!cancelled) {
+            try {
+                if (fetch()) {
+                    if (!cancelled) onComplete.accept(this);
+                    return;
+                }
+                // the sender has moved on to another snapshot
+                Files.deleteIfExists(partial);
+                return;
+            } catch (IOException e) {
+                try {
+                    Thread.sleep(RETRY_INTERVAL);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // one connection's worth: true once the file is complete, false if the sender lacks the snapshot
+    private boolean fetch() throws IOException {
+        String[] hostPort = source.split(":");
+        try (SocketChannel in = SocketChannel.open(new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1])));
+             FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long offset = out.size();
+            received = offset;
+            ByteBuffer request = ByteBuffer.allocate(SnapshotSender.REQUEST_BYTES).putInt(index).putInt(term).putLong(offset);
+            request.flip();
+            while (request.hasRemaining()) {
+                in.write(request);
+            }
+            ByteBuffer answer = ByteBuffer.allocate(8);
+            while (answer.hasRemaining()) {
+                if (in.read(answer) < 0) throw new EOFException("no answer from " + source);
+            }
+            long size = answer.getLong(0);
+            if (size < 0) return false;
+            while (offset < size && !cancelled) {
+                long n = out.transferFrom(in, offset, Math.min(SnapshotSender.CHUNK_BYTES, size - offset));
+                if (n == 0) throw new EOFException("snapshot transfer from " + source + " cut short at " + offset);
+                offset += n;
+                received = offset;
+            }
+            if (offset < size) throw new IOException("cancelled");
+            out.force(true);
+            return true;
+        }
+    }
+}
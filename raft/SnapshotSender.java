@@ -0,0 +1,125 @@
+package raft;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * SnapshotSender serves a leader's snapshot file to followers that fell behind its compacted log,
+ * on a channel of its own so a transfer never queues in front of AppendEntries or heartbeats
+ *  -- a follower asks for the snapshot of one index and term from some offset, so an interrupted
+ *     transfer resumes where it stopped; the answer is the snapshot's size, or -1 if the file no
+ *     longer holds it, and then the bytes from the offset on.  the snapshot is the file's prefix up
+ *     to its COMMIT, see SnapshotStore, which incremental snapshots appended since leave alone
+ *  -- the bytes go from the file to the socket with FileChannel.transferTo, so they are not copied
+ *     through the heap, in CHUNK_BYTES pieces
+ *  -- every chunk first takes its size from a TokenBucket shared by all transfers, so snapshots
+ *     together never take more than `raft.snapshotRate` bytes per second of the leader's bandwidth
+ */
+class SnapshotSender {
+    static final int CHUNK_BYTES = 64 * 1024;
+    static final long RATE = Long.getLong("raft.snapshotRate", 32L << 20);
+    // index, term and offset
+    static final int REQUEST_BYTES = 16;
+
+    private final ServerSocketChannel server;
+    private final SnapshotStore snapshot;
+    private final TokenBucket bucket;
+    private final String name;
+    private final String address;
+
+    /**
+     * bind a listener on an ephemeral port and start accepting transfers
+     *
+     * @param host      address to listen on, as other peers reach this one
+     * @param snapshot  the snapshot file, see WriteAheadLog.snapshotStore
+     * @param name      used to name the threads
+     */
+    SnapshotSender(String host, SnapshotStore snapshot, String name) {
+        try {
+            this.server = ServerSocketChannel.open();
+            this.server.bind(new InetSocketAddress(host, 0));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.snapshot = snapshot;
+        this.bucket = new TokenBucket(RATE, CHUNK_BYTES);
+        this.name = name;
+        this.address = host + ":" + server.socket().getLocalPort();
+        Thread acceptor = new Thread(this::acceptLoop, "raft-snapshot-accept-" + name);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return "host:port" for followers to fetch from
+     */
+    String getAddress() {
+        return address;
+    }
+
+    /**
+     * stop accepting transfers; transfers already running finish, or fail with their follower
+     */
+    void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // the listener is gone either way
+        }
+    }
+
+    private void acceptLoop() {
+        while (server.isOpen()) {
+            try {
+                SocketChannel follower = server.accept();
+                Thread transfer = new Thread(() -> serve(follower), "raft-snapshot-send-" + name);
+                transfer.setDaemon(true);
+                transfer.start();
+            } catch (IOException e) {
+                // closed
+                return;
+            }
+        }
+    }
+
+    private void serve(SocketChannel follower) {
+        try (SocketChannel out = follower) {
+            ByteBuffer request = ByteBuffer.allocate(REQUEST_BYTES);
+            while (request.hasRemaining()) {
+                if (out.read(request) < 0) throw new EOFException("snapshot request cut short");
+            }
+            request.flip();
+            int index = request.getInt();
+            int term = request.getInt();
+            long offset = request.getLong();
+            SnapshotStore.Transfer transfer = snapshot.open(index, term);
+            long size = transfer == null ? -1 : transfer.length;
+            writeFully(out, ByteBuffer.allocate(8).putLong(0, offset <= size ? size : -1));
+            if (transfer == null) return;
+            try (FileChannel file = transfer.channel) {
+                if (offset > size) return;
+                for (long position = offset; position < size; ) {
+                    long chunk = Math.min(CHUNK_BYTES, size - position);
+                    bucket.acquire(chunk);
+                    position += file.transferTo(position, chunk, out);
+                }
+            }
+        } catch (IOException e) {
+            // the follower went away; it resumes from what it has
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
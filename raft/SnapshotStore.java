@@ -0,0 +1,405 @@
+package raft;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * SnapshotStore keeps a WriteAheadLog's state machine snapshots in one append-only file
+ *  -- a snapshot is a run of records closed by a COMMIT record that names the index and term of the
+ *     last entry it covers and carries a CRC32C of the records since the previous COMMIT; open()
+ *     drops whatever follows the last good COMMIT, i.e. a torn append
+ *  -- a snapshot of a PagedState appends only the pages whose version changed since the last one
+ *     written; the state as of a COMMIT is the latest copy of every page before it
+ *  -- a snapshot is written whole to a new file that atomically replaces the old one if it comes
+ *     from StateMachine.snapshot(), if the page versions written last are unknown, e.g. after a
+ *     restart, or once stale page copies take more room than the live ones
+ *  -- an append never changes bytes before the end of the file, so the file up to any of its
+ *     COMMITs is that snapshot on its own; SnapshotSender streams such a prefix, and a transfer
+ *     resumes by offset even if newer snapshots were appended meanwhile
+ *
+ * record layout: PAGE, page number, length, bytes; RAW, length, bytes (a whole state from
+ * StateMachine.snapshot()); COMMIT, index, term, page count (-1 after a RAW), CRC32C
+ */
+class SnapshotStore {
+    static final String FILE = "snapshot";
+    static final int PAGE = 1;
+    static final int RAW = 2;
+    static final int COMMIT = 3;
+    static final int PAGE_HEADER_BYTES = 12;
+    static final int RAW_HEADER_BYTES = 8;
+    static final int COMMIT_BYTES = 20;
+
+    private final Path dir;
+    private final Path path;
+    private Layout layout;
+    // versions of the pages of the last snapshot, as written by this process; null if unknown
+    private long[] writtenVersions;
+
+    /**
+     * open the snapshot file in `dir`, if there is one, dropping a torn append at its end
+     */
+    SnapshotStore(Path dir) throws IOException {
+        this.dir = dir;
+        this.path = dir.resolve(FILE);
+        try {
+            this.layout = scan(path);
+            if (Files.size(path) > layout.length) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.truncate(layout.length);
+                    channel.force(true);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            this.layout = new Layout();
+        }
+    }
+
+    /**
+     * @return index of the last entry the snapshot covers, 0 if there is none
+     */
+    synchronized int getIndex() {
+        return layout.index;
+    }
+
+    synchronized int getTerm() {
+        return layout.term;
+    }
+
+    /**
+     * write a whole state as a new snapshot file, unless the snapshot already covers `index`
+     *
+     * @return true if the snapshot was replaced
+     */
+    synchronized boolean save(int index, int term, byte[] state) throws IOException {
+        if (index <= layout.index) return false;
+        rewrite(out -> {
+            out.writeInt(RAW);
+            out.writeInt(state.length);
+            out.write(state);
+        }, index, term, -1);
+        writtenVersions = null;
+        return true;
+    }
+
+    /**
+     * write a frozen state as a new snapshot, appending only the pages that changed since the last
+     * one where possible, unless the snapshot already covers `index`
+     *
+     * @return true if the snapshot was replaced
+     */
+    synchronized boolean save(int index, int term, PagedState state) throws IOException {
+        if (index <= layout.index) return false;
+        int pages = state.pageCount();
+        long[] versions = new long[pages];
+        for (int p = 0; p < pages; p++) {
+            versions[p] = state.version(p);
+        }
+        boolean incremental = writtenVersions != null && writtenVersions.length == pages &&
+                layout.length - layout.liveBytes <= layout.liveBytes;
+        if (incremental) {
+            append(state, versions, index, term);
+        } else {
+            rewrite(out -> {
+                for (int p = 0; p < pages; p++) {
+                    writePage(out, p, state.encode(p));
+                }
+            }, index, term, pages);
+        }
+        writtenVersions = versions;
+        return true;
+    }
+
+    /**
+     * replace the snapshot with a complete copy of another peer's snapshot file, unless it already
+     * covers `index`; the copy is removed either way
+     *
+     * @param copy  a prefix of another peer's file, up to its COMMIT of `index`
+     * @return true if the snapshot was replaced
+     * @throws IOException if the copy is not a whole snapshot of that entry
+     */
+    boolean install(Path copy, int index, int term) throws IOException {
+        Layout copied;
+        try {
+            // checked in full outside the lock, as it came over the network
+            copied = scan(copy);
+            if (copied.index != index || copied.term != term || copied.length != Files.size(copy)) {
+                throw new IOException("incomplete snapshot copy " + copy);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(copy);
+            throw e;
+        }
+        synchronized (this) {
+            if (index <= layout.index) {
+                Files.delete(copy);
+                return false;
+            }
+            Files.move(copy, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            forceDirectory();
+            layout = copied;
+            writtenVersions = null;
+            return true;
+        }
+    }
+
+    /**
+     * @return the state as of the latest snapshot, as StateMachine.restore expects it, or null if
+     *         there is none
+     */
+    synchronized WriteAheadLog.Snapshot load() throws IOException {
+        if (layout.index == 0) return null;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (layout.pageCount < 0) {
+                return new WriteAheadLog.Snapshot(layout.index, layout.term,
+                        read(channel, layout.rawOffset, (int) layout.rawLength));
+            }
+            long total = 4;
+            for (int p = 0; p < layout.pageCount; p++) {
+                total += 4 + layout.pageLength[p];
+            }
+            ByteBuffer state = ByteBuffer.allocate(Math.toIntExact(total));
+            state.putInt(layout.pageCount);
+            for (int p = 0; p < layout.pageCount; p++) {
+                state.putInt((int) layout.pageLength[p]);
+                state.put(read(channel, layout.pageOffset[p], (int) layout.pageLength[p]));
+            }
+            return new WriteAheadLog.Snapshot(layout.index, layout.term, state.array());
+        }
+    }
+
+    /**
+     * open the file to read the snapshot of one entry, for SnapshotSender
+     *
+     * @return the file and the length of that snapshot in it, or null if the file holds no snapshot
+     *         of that index and term
+     */
+    synchronized Transfer open(int index, int term) throws IOException {
+        long[] commit = layout.commits.get(index);
+        if (commit == null || commit[0] != term) return null;
+        // the channel keeps reading this file even if a rewrite replaces it
+        return new Transfer(FileChannel.open(path, StandardOpenOption.READ), commit[1]);
+    }
+
+    // write a whole new file, then move it into place
+    private void rewrite(RecordWriter records, int index, int term, int pageCount) throws IOException {
+        Path tmp = dir.resolve(FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CRC32C crc = new CRC32C();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), crc));
+            records.write(out);
+            writeCommit(out, crc, index, term, pageCount);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        forceDirectory();
+        layout = scan(path);
+    }
+
+    private void append(PagedState state, long[] versions, int index, int term) throws IOException {
+        Layout next = layout.copy();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.position(layout.length);
+            CRC32C crc = new CRC32C();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), crc));
+            long position = layout.length;
+            for (int p = 0; p < versions.length; p++) {
+                if (versions[p] == writtenVersions[p]) continue;
+                byte[] page = state.encode(p);
+                writePage(out, p, page);
+                next.liveBytes += page.length - next.pageLength[p];
+                next.pageOffset[p] = position + PAGE_HEADER_BYTES;
+                next.pageLength[p] = page.length;
+                position += PAGE_HEADER_BYTES + page.length;
+            }
+            writeCommit(out, crc, index, term, versions.length);
+            out.flush();
+            channel.force(false);
+            next.length = position + COMMIT_BYTES;
+        }
+        next.index = index;
+        next.term = term;
+        next.commits.put(index, new long[] {term, next.length});
+        layout = next;
+    }
+
+    private static void writePage(DataOutputStream out, int page, byte[] content) throws IOException {
+        out.writeInt(PAGE);
+        out.writeInt(page);
+        out.writeInt(content.length);
+        out.write(content);
+    }
+
+    private static void writeCommit(DataOutputStream out, CRC32C crc, int index, int term, int pageCount) throws IOException {
+        out.writeInt(COMMIT);
+        out.writeInt(index);
+        out.writeInt(term);
+        out.writeInt(pageCount);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private void forceDirectory() throws IOException {
+        try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    private static byte[] read(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("snapshot file shorter than its records");
+            }
+        }
+        return buffer.array();
+    }
+
+    // walk every record, checking each COMMIT's checksum, up to the last good COMMIT
+    private static Layout scan(Path file) throws IOException {
+        Layout good = new Layout();
+        Layout next = new Layout();
+        CRC32C crc = new CRC32C();
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 1 << 16), crc))) {
+            while (true) {
+                int kind = in.readInt();
+                if (kind == PAGE) {
+                    int page = in.readInt();
+                    int length = in.readInt();
+                    if (page < 0 || length < 0) break;
+                    in.skipNBytes(length);
+                    next.setPage(page, position + PAGE_HEADER_BYTES, length);
+                    position += PAGE_HEADER_BYTES + length;
+                } else if (kind == RAW) {
+                    int length = in.readInt();
+                    if (length < 0) break;
+                    in.skipNBytes(length);
+                    next.rawOffset = position + RAW_HEADER_BYTES;
+                    next.rawLength = length;
+                    position += RAW_HEADER_BYTES + length;
+                } else if (kind == COMMIT) {
+                    int index = in.readInt();
+                    int term = in.readInt();
+                    int pageCount = in.readInt();
+                    int expected = (int) crc.getValue();
+                    if (in.readInt() != expected || !next.commit(index, term, pageCount)) break;
+                    position += COMMIT_BYTES;
+                    next.length = position;
+                    next.commits.put(index, new long[] {term, position});
+                    good = next.copy();
+                    crc.reset();
+                } else {
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // a torn append, or the end of the file
+        }
+        return good;
+    }
+
+    /**
+     * a snapshot file opened for reading one snapshot, its first `length` bytes
+     */
+    static class Transfer {
+        final FileChannel channel;
+        final long length;
+
+        Transfer(FileChannel channel, long length) {
+            this.channel = channel;
+            this.length = length;
+        }
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    // where the latest snapshot's pages are in the file, and where each of its snapshots ends
+    private static class Layout {
+        int index;
+        int term;
+        // end of the last COMMIT
+        long length;
+        // -1 for a RAW state
+        int pageCount = -1;
+        long[] pageOffset = new long[0];
+        long[] pageLength = new long[0];
+        long rawOffset;
+        long rawLength;
+        // bytes of the records the latest snapshot is made of
+        long liveBytes;
+        // index of every snapshot in the file, to its term and end
+        Map<Integer, long[]> commits = new HashMap<>();
+
+        void setPage(int page, long offset, long length) {
+            if (page >= pageOffset.length) {
+                int old = pageOffset.length;
+                int size = Math.max(page + 1, old * 2);
+                pageOffset = Arrays.copyOf(pageOffset, size);
+                pageLength = Arrays.copyOf(pageLength, size);
+                Arrays.fill(pageOffset, old, size, -1);
+            }
+            pageOffset[page] = offset;
+            pageLength[page] = length;
+        }
+
+        // false if the records before the COMMIT do not make up a whole state
+        boolean commit(int index, int term, int pageCount) {
+            if (index <= this.index) return false;
+            this.index = index;
+            this.term = term;
+            this.pageCount = pageCount;
+            if (pageCount < 0) {
+                liveBytes = RAW_HEADER_BYTES + rawLength;
+                return true;
+            }
+            if (pageOffset.length < pageCount) return false;
+            liveBytes = 0;
+            for (int p = 0; p < pageCount; p++) {
+                if (pageOffset[p] < 0) return false;
+                liveBytes += PAGE_HEADER_BYTES + pageLength[p];
+            }
+            return true;
+        }
+
+        Layout copy() {
+            Layout c = new Layout();
+            c.index = index;
+            c.term = term;
+            c.length = length;
+            c.pageCount = pageCount;
+            c.pageOffset = pageOffset.clone();
+            c.pageLength = pageLength.clone();
+            c.rawOffset = rawOffset;
+            c.rawLength = rawLength;
+            c.liveBytes = liveBytes;
+            c.commits = new HashMap<>(commits);
+            return c;
+        }
+    }
+}
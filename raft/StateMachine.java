@@ -0,0 +1,48 @@
+package raft;
+
+/**
+ * StateMachine is the replicated service driven by a RaftPeer's log
+ *  -- committed entries are applied exactly once per peer, in log order, on the peer's applier thread
+ *  -- entries written by NewCommand carry no data and should be ignored
+ *  -- taking snapshots is optional, but restoring one is not: a follower is sent its leader's
+ *     snapshot once the leader has compacted the entries it lacks, whatever its own state machine
+ */
+public interface StateMachine {
+    /**
+     * apply one committed log entry
+     *
+     * @param entry     the committed entry, with its index, term and command bytes
+     */
+    void apply(RaftLog entry);
+
+    /**
+     * encode the whole state, for a RaftPeer with a WriteAheadLog to save periodically; called on
+     * the applier thread between applies
+     *
+     * @return the encoded state, or null if this state machine does not take snapshots
+     */
+    default byte[] snapshot() {
+        return null;
+    }
+
+    /**
+     * freeze the state in O(1), e.g. by copy-on-write, for a snapshot that a background thread then
+     * writes while entries go on being applied; called on the applier thread between applies, and
+     * used instead of snapshot() when it returns a state
+     *
+     * @return the frozen state, or null to take snapshots with snapshot()
+     */
+    default PagedState fork() {
+        return null;
+    }
+
+    /**
+     * replace the whole state with one encoded by snapshot(), when a restarted peer recovers or a
+     * follower installs its leader's snapshot; the state of a state machine that forks is its pages
+     * as written by PagedState.encode, in the form int pageCount, then the int length and bytes of
+     * each page in order
+     *
+     * @param state the encoded state
+     */
+    void restore(byte[] state);
+}
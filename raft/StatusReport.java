@@ -4,6 +4,9 @@ import java.io.Serializable;
 
 /**
  * StatusReport object is sent to Controller in response to command and status requests
+ *
+ * it also carries the id and address of the leader the reporting peer knows of, so that a client
+ * that reached a follower can go straight to the leader; both are unset if no leader is known
  */
 public class StatusReport implements Serializable {
 
@@ -11,12 +14,22 @@ public class StatusReport implements Serializable {
     public int term;
     public boolean leader;
     public int callCount;
+    public int leaderId;
+    public String leaderAddr;
+    // set by a leader that refused the command under load; the client should retry later
+    public boolean busy;
     
     public StatusReport(int index, int term, boolean leader, int callCount) {
+        this(index, term, leader, callCount, -1, null);
+    }
+
+    public StatusReport(int index, int term, boolean leader, int callCount, int leaderId, String leaderAddr) {
         this.index = index;
         this.term = term;
         this.leader = leader;
         this.callCount = callCount;
+        this.leaderId = leaderId;
+        this.leaderAddr = leaderAddr;
     }
 }
 
@@ -0,0 +1,54 @@
+package raft;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TokenBucket limits a byte stream to a steady rate
+ *  -- tokens accrue at `rate` per second up to `capacity`, so at most one capacity's worth is ever
+ *     sent in a burst after an idle spell
+ *  -- acquire() blocks the caller until enough tokens have accrued; callers share the rate, in the
+ *     order they get the monitor
+ */
+class TokenBucket {
+    private final long rate;
+    private final long capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param rate      tokens per second, at least 1
+     * @param capacity  most tokens held at once, and so the largest single acquire
+     */
+    TokenBucket(long rate, long capacity) {
+        this.rate = Math.max(1, rate);
+        this.capacity = Math.max(1, capacity);
+        this.tokens = this.capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * take `n` tokens, waiting for them to accrue if need be
+     *
+     * @param n number of tokens, capped at the capacity
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized void acquire(long n) throws InterruptedException {
+        n = Math.min(n, capacity);
+        while (true) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            if (tokens >= n) {
+                tokens -= n;
+                return;
+            }
+            long waitNanos = (long) Math.ceil((n - tokens) * 1e9 / rate);
+            // sleep holding the monitor: the next caller would only wait for the same tokens
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    long getRate() {
+        return rate;
+    }
+}
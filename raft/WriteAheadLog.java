@@ -0,0 +1,962 @@
+package raft;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * WriteAheadLog keeps a RaftPeer's persistent state on disk: the log entries, in segment files of
+ * up to SEGMENT_BYTES named after the index of their first entry, plus its term and vote and the
+ * latest state machine snapshot
+ *  -- append() only encodes entries into a buffer, so the caller never waits for the disk; a flusher
+ *     thread writes the buffer out and forces it with one fsync for everything appended since the
+ *     previous one (group commit)
+ *  -- once a force completes, the durability listener is given the highest index now on disk; the
+ *     leader overlaps this with sending the same entries to its followers
+ *  -- truncate() drops a suffix, for a follower whose log conflicts with the leader's
+ *  -- whenever a segment is sealed, the flusher records the sealed segments in a checkpoint file;
+ *     open() trusts every sealed segment whose size matches its checkpoint and scans only the
+ *     others, normally just the tail.  entries are not loaded: entries() reads them from the
+ *     segments on demand, and a sealed segment's record offsets are built the first time it is read
+ *  -- every record carries a CRC32C of the rest of it.  open() checks it in every segment it scans
+ *     and cuts the log back to the last good record, which drops a torn write at the tail; entries
+ *     read back later, e.g. for a lagging follower, are checked as they are read
+ *  -- snapshots are kept by a SnapshotStore, which appends only the pages of a PagedState that
+ *     changed since the snapshot before
+ *  -- once a snapshot is saved, compact() deletes the sealed segments it covers, so the log starts
+ *     at firstIndex(); a follower that installs a leader's snapshot its log does not match reset()s
+ *     the log to start right after it
+ *
+ * record layout: CRC32C, index, term, msg, data length (-1 for no data), data; i.e. CRC_BYTES plus
+ * RaftLog.sizeInBytes()
+ */
+public class WriteAheadLog {
+    static final long SEGMENT_BYTES = Long.getLong("raft.segmentBytes", 64L << 20);
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String CHECKPOINT_FILE = "checkpoint";
+    static final String META_FILE = "meta";
+    static final String PARTIAL_SUFFIX = ".partial";
+    static final int CRC_BYTES = 4;
+    static final int RECORD_HEADER_BYTES = CRC_BYTES + RaftLog.HEADER_BYTES;
+    private static final int INITIAL_BUFFER_BYTES = 64 * 1024;
+
+    private final Path dir;
+    private final IntConsumer durabilityListener;
+    private final List<Segment> segments;
+    // segments written since their last force
+    private final Set<Segment> dirty;
+    private final Thread flusher;
+    // records appended but not yet written to the last segment
+    private ByteBuffer pending;
+    private int lastIndex;
+    private volatile int durableIndex;
+    // bumped by truncate(), so a force that raced with it does not report dropped entries durable
+    private int truncations;
+    // the set of sealed segments changed since the checkpoint was written
+    private boolean checkpointStale;
+    private long syncCount;
+    private IOException failure;
+    private boolean closed;
+    private final CRC32C crc = new CRC32C();
+    // recovered term and vote, -1 for none
+    private int term;
+    private int votedFor;
+    // last entry covered by the snapshot file, 0 for none
+    private int snapshotIndex;
+    private int snapshotTerm;
+    // the snapshot file, which serializes replacing it without holding up appends
+    private SnapshotStore snapshots;
+    // the list handed out by entries(), kept in step by compact() and reset()
+    private RecoveredEntries view;
+
+    /**
+     * open the log in `dir`, recovering whatever an earlier run left there
+     *
+     * @param dir                   directory holding the log, created if missing
+     * @param durabilityListener    called on the flusher thread with the highest durable index
+     *                              after each completed force
+     * @param name                  used to name the flusher thread
+     * @return the log, with its flusher running
+     * @throws UncheckedIOException if the directory cannot be read or prepared
+     */
+    static WriteAheadLog open(Path dir, IntConsumer durabilityListener, String name) {
+        try {
+            Files.createDirectories(dir);
+            WriteAheadLog wal = new WriteAheadLog(dir, durabilityListener, name);
+            wal.recover();
+            wal.flusher.start();
+            return wal;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private WriteAheadLog(Path dir, IntConsumer durabilityListener, String name) {
+        this.dir = dir;
+        this.durabilityListener = durabilityListener;
+        this.segments = new ArrayList<>();
+        this.dirty = new LinkedHashSet<>();
+        this.pending = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+        this.lastIndex = 0;
+        this.durableIndex = 0;
+        this.term = 0;
+        this.votedFor = -1;
+        this.flusher = new Thread(this::flushLoop, "raft-wal-" + name);
+        this.flusher.setDaemon(true);
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> found = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            found.forEach(files::add);
+        }
+        // names are zero-padded first indexes, so name order is log order
+        files.sort(null);
+        Map<Integer, long[]> checkpoint = readCheckpoint();
+        if (!files.isEmpty()) {
+            // a compacted log starts past index 1; the snapshot stands for what came before
+            lastIndex = firstIndexOf(files.get(0)) - 1;
+        }
+        for (int i = 0; i < files.size(); i++) {
+            Path path = files.get(i);
+            int firstIndex = firstIndexOf(path);
+            boolean last = i == files.size() - 1;
+            if (firstIndex != lastIndex + 1) {
+                // a gap, left by a crash while segments were being dropped: nothing after it is usable
+                deleteFrom(files, i);
+                break;
+            }
+            Segment s = new Segment(firstIndex, path, FileChannel.open(path,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE));
+            long[] sealed = checkpoint.get(firstIndex);
+            long fileSize = s.channel.size();
+            if (!last && sealed != null && sealed[1] == fileSize) {
+                s.count = (int) sealed[0];
+                s.size = fileSize;
+                s.offsets = null;
+            } else {
+                s.index(true);
+                if (s.size < fileSize) {
+                    // a torn write at the end of the segment; nothing after it can be trusted
+                    s.channel.truncate(s.size);
+                    s.channel.force(false);
+                    segments.add(s);
+                    lastIndex = s.lastIndex();
+                    deleteFrom(files, i + 1);
+                    checkpointStale = true;
+                    break;
+                }
+            }
+            segments.add(s);
+            lastIndex = s.lastIndex();
+        }
+        if (segments.isEmpty()) {
+            segments.add(createSegment(lastIndex + 1));
+        }
+        tail().channel.position(tail().size);
+        durableIndex = lastIndex;
+        readMeta();
+        snapshots = new SnapshotStore(dir);
+        snapshotIndex = snapshots.getIndex();
+        snapshotTerm = snapshots.getTerm();
+    }
+
+    private static int firstIndexOf(Path segment) {
+        return Integer.parseInt(segment.getFileName().toString().replace(SEGMENT_SUFFIX, ""));
+    }
+
+    private void deleteFrom(List<Path> files, int from) throws IOException {
+        for (int j = files.size() - 1; j >= from; j--) {
+            Files.delete(files.get(j));
+        }
+    }
+
+    /**
+     * @return a list view of every entry in the log, indexed from 0 for log index 1, that reads
+     *         entries recovered from disk on demand; it is the caller's in-memory log from then on:
+     *         entries added to it are kept in memory, and it only supports removing its last entry.
+     *         an entry compacted into the snapshot cannot be read, except the snapshot's last one,
+     *         which reads as an entry with only its index and term
+     */
+    synchronized List<RaftLog> entries() {
+        view = new RecoveredEntries(lastIndex);
+        return view;
+    }
+
+    /**
+     * @return index of the first entry still in the segments
+     */
+    synchronized int firstIndex() {
+        return segments.get(0).firstIndex;
+    }
+
+    /**
+     * @param index index of an entry up to the last index
+     * @return true if the entry was compacted into the snapshot, so neither it nor its term is known
+     */
+    synchronized boolean isCompacted(int index) {
+        return index > 0 && index < firstIndex() && index != snapshotIndex;
+    }
+
+    /**
+     * buffer one entry for writing; entries must be appended in index order without gaps
+     *
+     * @param entry the entry, whose index must be lastIndex + 1
+     */
+    synchronized void append(RaftLog entry) {
+        if (entry.index != lastIndex + 1) {
+            throw new IllegalArgumentException("append of index " + entry.index + " after " + lastIndex);
+        }
+        int size = CRC_BYTES + entry.sizeInBytes();
+        Segment tail = tail();
+        if (tail.count > 0 && tail.size + size > SEGMENT_BYTES) {
+            writePending();
+            tail = createSegment(entry.index);
+            segments.add(tail);
+            checkpointStale = true;
+        }
+        if (pending.remaining() < size) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + size));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        int start = pending.position();
+        pending.putInt(0).putInt(entry.index).putInt(entry.term).putInt(entry.msg);
+        if (entry.data == null) {
+            pending.putInt(-1);
+        } else {
+            pending.putInt(entry.data.length).put(entry.data);
+        }
+        crc.reset();
+        crc.update(pending.array(), start + CRC_BYTES, size - CRC_BYTES);
+        pending.putInt(start, (int) crc.getValue());
+        tail.addRecord(size);
+        lastIndex = entry.index;
+        notifyAll();
+    }
+
+    /**
+     * drop every entry from `fromIndex` on
+     *
+     * @param fromIndex index of the first entry to drop
+     */
+    synchronized void truncate(int fromIndex) {
+        if (fromIndex > lastIndex) return;
+        fromIndex = Math.max(fromIndex, 1);
+        writePending();
+        try {
+            while (segments.size() > 1 && tail().firstIndex >= fromIndex) {
+                Segment removed = segments.remove(segments.size() - 1);
+                dirty.remove(removed);
+                removed.channel.close();
+                Files.delete(removed.path);
+                checkpointStale = true;
+            }
+            Segment tail = tail();
+            tail.truncate(fromIndex);
+            dirty.add(tail);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        lastIndex = fromIndex - 1;
+        durableIndex = Math.min(durableIndex, lastIndex);
+        truncations++;
+        notifyAll();
+    }
+
+    /**
+     * delete the sealed segments whose entries are all at or below `upTo`, once they are covered by
+     * the snapshot, and let the entries() list read anything the snapshot covers back from disk
+     * instead of holding it in memory; called holding the monitor that guards that list
+     *
+     * @param upTo  last index that may be dropped, capped at the snapshot's last index
+     */
+    synchronized void compact(int upTo) {
+        upTo = Math.min(upTo, snapshotIndex);
+        try {
+            // oldest first, so a crash part way leaves the remaining segments contiguous
+            while (segments.size() > 1 && segments.get(0).lastIndex() <= upTo) {
+                Segment removed = segments.remove(0);
+                dirty.remove(removed);
+                removed.channel.close();
+                Files.delete(removed.path);
+                checkpointStale = true;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (view != null) {
+            view.release(snapshotIndex);
+        }
+        notifyAll();
+    }
+
+    /**
+     * drop the whole log and start it again right after `index`, for a follower that installed a
+     * snapshot at `index` which its log does not match; the entries() list is emptied likewise.
+     * called holding the monitor that guards that list
+     *
+     * @param index index of the snapshot's last entry
+     */
+    synchronized void reset(int index) {
+        pending.clear();
+        try {
+            for (Segment s: segments) {
+                s.channel.close();
+                Files.delete(s.path);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        segments.clear();
+        dirty.clear();
+        segments.add(createSegment(index + 1));
+        lastIndex = index;
+        durableIndex = index;
+        truncations++;
+        checkpointStale = true;
+        if (view != null) {
+            view.reset(index);
+        }
+        notifyAll();
+    }
+
+    /**
+     * read one entry back from its segment
+     *
+     * @param index index of the entry, at most the last index written out
+     * @return the entry
+     */
+    synchronized RaftLog read(int index) {
+        if (index < firstIndex()) {
+            if (index == snapshotIndex) {
+                return new RaftLog(0, snapshotTerm, snapshotIndex);
+            }
+            throw new IndexOutOfBoundsException("entry " + index + " was compacted into the snapshot");
+        }
+        Segment s = segmentOf(index);
+        try {
+            s.index(false);
+            long offset = s.offsets[index - s.firstIndex];
+            int length = (int) (s.endOf(index - s.firstIndex) - offset);
+            ByteBuffer record = ByteBuffer.allocate(length);
+            while (record.hasRemaining()) {
+                if (s.channel.read(record, offset + record.position()) < 0) {
+                    throw new EOFException("record " + index + " past the end of " + s.path);
+                }
+            }
+            record.flip();
+            if (!checksumMatches(crc, record.array(), length)) {
+                throw new IOException("checksum mismatch in record " + index + " of " + s.path);
+            }
+            return decode(record);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return total RaftLog.sizeInBytes() of the entries in [from, to], without reading them
+     */
+    synchronized long bytesBetween(int from, int to) {
+        // compacted entries are committed, so they are never asked about but may fall in the range
+        from = Math.max(from, firstIndex());
+        long bytes = -(long) CRC_BYTES * Math.max(0, to - from + 1);
+        for (int index = from; index <= to; ) {
+            Segment s = segmentOf(index);
+            int last = Math.min(to, s.lastIndex());
+            if (index == s.firstIndex && last == s.lastIndex()) {
+                // a whole segment: no need to index it
+                bytes += s.size;
+            } else {
+                try {
+                    s.index(false);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                bytes += s.endOf(last - s.firstIndex) - s.offsets[index - s.firstIndex];
+            }
+            index = last + 1;
+        }
+        return bytes;
+    }
+
+    /**
+     * block until every entry up to `index` is on disk
+     *
+     * @param index index to wait for
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IOException          if the log cannot be written
+     */
+    synchronized void awaitDurable(int index) throws InterruptedException, IOException {
+        while (durableIndex < index && failure == null && !closed) {
+            wait();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return the highest index known to be on disk
+     */
+    int getDurableIndex() {
+        return durableIndex;
+    }
+
+    synchronized int getLastIndex() {
+        return lastIndex;
+    }
+
+    /**
+     * @return number of forces completed, each covering one or more appends
+     */
+    synchronized long getSyncCount() {
+        return syncCount;
+    }
+
+    /**
+     * @return the term recorded by saveMeta, 0 if none
+     */
+    synchronized int getTerm() {
+        return term;
+    }
+
+    /**
+     * @return the vote recorded by saveMeta, -1 if none
+     */
+    synchronized int getVotedFor() {
+        return votedFor;
+    }
+
+    /**
+     * durably record the current term and vote; returns once they are on disk, as Raft requires
+     * before answering a vote or asking for one
+     *
+     * @param term      current term
+     * @param votedFor  peer voted for in `term`, -1 for none
+     */
+    synchronized void saveMeta(int term, int votedFor) {
+        if (term == this.term && votedFor == this.votedFor) return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(term);
+            out.writeInt(votedFor);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        writeAtomically(META_FILE, bytes.toByteArray());
+        this.term = term;
+        this.votedFor = votedFor;
+    }
+
+    /**
+     * durably replace the snapshot, unless it already covers `index`
+     *
+     * @param index index of the last entry the snapshot includes
+     * @param term  term of that entry
+     * @param state the state machine's encoded state
+     */
+    void saveSnapshot(int index, int term, byte[] state) {
+        try {
+            // an installed snapshot may have overtaken the one the applier was taking
+            if (snapshots.save(index, term, state)) setSnapshot(index, term);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * durably replace the snapshot with a frozen state, writing only the pages that changed since
+     * the snapshot before it where possible, unless the snapshot already covers `index`
+     *
+     * @param index index of the last entry the snapshot includes
+     * @param term  term of that entry
+     * @param state the state machine's state as of that entry, from StateMachine.fork()
+     */
+    void saveSnapshot(int index, int term, PagedState state) {
+        try {
+            if (snapshots.save(index, term, state)) setSnapshot(index, term);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param index index of the last entry of a snapshot being fetched
+     * @param term  term of that entry
+     * @return where to keep the snapshot until it is complete, so that a fetch can resume
+     */
+    Path partialSnapshotPath(int index, int term) {
+        return dir.resolve(SnapshotStore.FILE + "-" + index + "-" + term + PARTIAL_SUFFIX);
+    }
+
+    /**
+     * durably replace the snapshot with a complete copy of another peer's snapshot file, unless it
+     * already covers `index`; the copy is removed either way
+     *
+     * @param partial   the copy, as fetched to partialSnapshotPath(index, term)
+     * @param index     index of the last entry the snapshot includes
+     * @param term      term of that entry
+     * @return true if the snapshot was replaced
+     * @throws IOException if the copy is not a whole snapshot of that entry
+     */
+    boolean installSnapshot(Path partial, int index, int term) throws IOException {
+        if (!snapshots.install(partial, index, term)) return false;
+        setSnapshot(index, term);
+        // copies of other snapshots, e.g. abandoned for a newer one, will not be resumed now
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(dir, SnapshotStore.FILE + "-*" + PARTIAL_SUFFIX)) {
+            for (Path path: stale) {
+                Files.deleteIfExists(path);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the snapshot file, for SnapshotSender to serve
+     */
+    SnapshotStore snapshotStore() {
+        return snapshots;
+    }
+
+    /**
+     * @return index and term of the last entry the current snapshot includes, without its state,
+     *         which is null; index 0 if there is no snapshot
+     */
+    synchronized Snapshot getSnapshot() {
+        return new Snapshot(snapshotIndex, snapshotTerm, null);
+    }
+
+    private synchronized void setSnapshot(int index, int term) {
+        snapshotIndex = index;
+        snapshotTerm = term;
+    }
+
+    /**
+     * @return the snapshot saved last, or null if there is none
+     */
+    Snapshot loadSnapshot() {
+        try {
+            return snapshots.load();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * stop the flusher, after it has forced everything appended so far, and close the segments
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment s: segments) {
+                try {
+                    s.channel.close();
+                } catch (IOException e) {
+                    // nothing left to lose, everything was forced by the flusher
+                }
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            Segment[] toForce;
+            int index;
+            int epoch;
+            byte[] checkpoint = null;
+            synchronized (this) {
+                while (!closed && pending.position() == 0 && dirty.isEmpty() && !checkpointStale) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.position() == 0 && dirty.isEmpty() && !checkpointStale) {
+                    return;
+                }
+                try {
+                    writePending();
+                } catch (UncheckedIOException e) {
+                    fail(e.getCause());
+                    return;
+                }
+                toForce = dirty.toArray(new Segment[0]);
+                dirty.clear();
+                index = lastIndex;
+                epoch = truncations;
+                if (checkpointStale) {
+                    checkpoint = encodeCheckpoint();
+                    checkpointStale = false;
+                }
+            }
+            // the force runs outside the monitor, so appends keep filling the next batch meanwhile
+            try {
+                for (Segment s: toForce) {
+                    try {
+                        s.channel.force(false);
+                    } catch (ClosedChannelException e) {
+                        // the segment was truncated away while this batch was being forced
+                    }
+                }
+                // written after the segments it lists were forced; a stale checkpoint only costs a scan
+                if (checkpoint != null) {
+                    writeAtomically(CHECKPOINT_FILE, checkpoint);
+                }
+            } catch (IOException | UncheckedIOException e) {
+                synchronized (this) {
+                    fail(e instanceof UncheckedIOException ? ((UncheckedIOException) e).getCause() : (IOException) e);
+                }
+                return;
+            }
+            synchronized (this) {
+                syncCount++;
+                if (epoch != truncations || index <= durableIndex) {
+                    continue;
+                }
+                durableIndex = index;
+                notifyAll();
+            }
+            durabilityListener.accept(index);
+        }
+    }
+
+    // holding the monitor
+    private void fail(IOException e) {
+        failure = e;
+        notifyAll();
+    }
+
+    // holding the monitor
+    private void writePending() {
+        if (pending.position() == 0) return;
+        Segment tail = tail();
+        pending.flip();
+        try {
+            while (pending.hasRemaining()) {
+                tail.channel.write(pending);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        pending.clear();
+        dirty.add(tail);
+    }
+
+    private Segment tail() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private Segment segmentOf(int index) {
+        int lo = 0, hi = segments.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segments.get(mid).firstIndex <= index) lo = mid; else hi = mid - 1;
+        }
+        return segments.get(lo);
+    }
+
+    private Segment createSegment(int firstIndex) {
+        Path path = dir.resolve(String.format("%020d%s", firstIndex, SEGMENT_SUFFIX));
+        try {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(firstIndex, path, channel);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // holding the monitor: every segment but the tail, as first index, entries and bytes
+    private byte[] encodeCheckpoint() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(segments.size() - 1);
+            for (Segment s: segments.subList(0, segments.size() - 1)) {
+                out.writeInt(s.firstIndex);
+                out.writeInt(s.count);
+                out.writeLong(s.size);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private Map<Integer, long[]> readCheckpoint() throws IOException {
+        Map<Integer, long[]> sealed = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(dir.resolve(CHECKPOINT_FILE))))) {
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                int firstIndex = in.readInt();
+                sealed.put(firstIndex, new long[] {in.readInt(), in.readLong()});
+            }
+        } catch (NoSuchFileException e) {
+            // no segment was ever sealed
+        }
+        return sealed;
+    }
+
+    private void readMeta() throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(dir.resolve(META_FILE)))) {
+            term = in.readInt();
+            votedFor = in.readInt();
+        } catch (NoSuchFileException e) {
+            // never voted, still in term 0
+        }
+    }
+
+    // replace a small file so that a crash leaves either the old or the new content
+    private void writeAtomically(String name, byte[] content) {
+        Path tmp = dir.resolve(name + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+            Files.move(tmp, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+                directory.force(true);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // the stored CRC32C against one computed over the rest of the record
+    private static boolean checksumMatches(CRC32C crc, byte[] record, int length) {
+        crc.reset();
+        crc.update(record, CRC_BYTES, length - CRC_BYTES);
+        int stored = (record[0] & 0xff) << 24 | (record[1] & 0xff) << 16 | (record[2] & 0xff) << 8 | (record[3] & 0xff);
+        return stored == (int) crc.getValue();
+    }
+
+    private static RaftLog decode(ByteBuffer record) {
+        record.getInt();
+        int index = record.getInt();
+        int term = record.getInt();
+        int msg = record.getInt();
+        int length = record.getInt();
+        if (length < 0) {
+            return new RaftLog(msg, term, index);
+        }
+        byte[] data = new byte[length];
+        record.get(data);
+        RaftLog entry = new RaftLog(data, term, index);
+        entry.msg = msg;
+        return entry;
+    }
+
+    /**
+     * a state machine snapshot as saved by saveSnapshot; a PagedState's pages come back assembled
+     * as StateMachine.restore expects them
+     */
+    static class Snapshot {
+        final int index;
+        final int term;
+        final byte[] state;
+
+        Snapshot(int index, int term, byte[] state) {
+            this.index = index;
+            this.term = term;
+            this.state = state;
+        }
+    }
+
+    // one segment file and the offset of each of its records
+    private static class Segment {
+        final int firstIndex;
+        final Path path;
+        final FileChannel channel;
+        // null until the segment is first read, for a segment trusted from the checkpoint
+        long[] offsets;
+        int count;
+        // bytes in the file plus bytes of this segment still in the pending buffer
+        long size;
+
+        Segment(int firstIndex, Path path, FileChannel channel) {
+            this.firstIndex = firstIndex;
+            this.path = path;
+            this.channel = channel;
+            this.offsets = new long[1024];
+        }
+
+        int lastIndex() {
+            return firstIndex + count - 1;
+        }
+
+        long endOf(int record) {
+            return record + 1 < count ? offsets[record + 1] : size;
+        }
+
+        /**
+         * build the record offsets by walking the record headers
+         *
+         * @param validate  true to scan the whole file, checking every record's checksum and
+         *                  setting count and size to the valid records it holds, up to the first
+         *                  incomplete or corrupt one; false to index a segment whose count and size
+         *                  are already known, once, leaving checksums to read()
+         */
+        void index(boolean validate) throws IOException {
+            if (!validate && offsets != null) return;
+            long fileSize = validate ? channel.size() : size;
+            long[] found = new long[Math.max(1024, validate ? 0 : count)];
+            int n = 0;
+            long position = 0;
+            byte[] record = new byte[RECORD_HEADER_BYTES];
+            CRC32C crc = new CRC32C();
+            try (InputStream raw = Files.newInputStream(path);
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(raw, 1 << 16))) {
+                while (position + RECORD_HEADER_BYTES <= fileSize && (validate || n < count)) {
+                    in.readFully(record, 0, RECORD_HEADER_BYTES);
+                    ByteBuffer header = ByteBuffer.wrap(record, 0, RECORD_HEADER_BYTES);
+                    int index = header.getInt(CRC_BYTES);
+                    int length = Math.max(header.getInt(RECORD_HEADER_BYTES - 4), 0);
+                    long end = position + RECORD_HEADER_BYTES + length;
+                    if (index != firstIndex + n || end > fileSize) break;
+                    if (validate) {
+                        if (record.length < RECORD_HEADER_BYTES + length) {
+                            record = Arrays.copyOf(record, RECORD_HEADER_BYTES + length);
+                        }
+                        in.readFully(record, RECORD_HEADER_BYTES, length);
+                        if (!checksumMatches(crc, record, RECORD_HEADER_BYTES + length)) break;
+                    } else {
+                        in.skipNBytes(length);
+                    }
+                    if (n == found.length) found = Arrays.copyOf(found, n * 2);
+                    found[n++] = position;
+                    position = end;
+                }
+            }
+            offsets = found;
+            if (validate) {
+                count = n;
+                size = position;
+            }
+        }
+
+        void addRecord(int recordBytes) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = size;
+            size += recordBytes;
+        }
+
+        void truncate(int fromIndex) throws IOException {
+            int keep = Math.max(0, fromIndex - firstIndex);
+            if (keep >= count) return;
+            index(false);
+            size = offsets[keep];
+            count = keep;
+            channel.truncate(size);
+        }
+    }
+
+    // the log as a list: entries up to onDisk are read from the segments, later ones are held in
+    // memory until a snapshot covers them; guarded by the owning RaftPeer's monitor, like the list it
+    // replaces
+    private class RecoveredEntries extends AbstractList<RaftLog> implements RandomAccess {
+        private int onDisk;
+        private final List<RaftLog> added;
+        // the last entry on disk, read on every getLastLog() until more are added
+        private RaftLog lastOnDisk;
+
+        RecoveredEntries(int onDisk) {
+            this.added = new ArrayList<>();
+            reset(onDisk);
+        }
+
+        @Override
+        public RaftLog get(int i) {
+            if (i < 0 || i >= size()) {
+                throw new IndexOutOfBoundsException(i);
+            }
+            if (i >= onDisk) {
+                return added.get(i - onDisk);
+            }
+            return i == onDisk - 1 ? lastOnDisk : read(i + 1);
+        }
+
+        @Override
+        public int size() {
+            return onDisk + added.size();
+        }
+
+        @Override
+        public boolean add(RaftLog entry) {
+            return added.add(entry);
+        }
+
+        // reads the entry before the removed one from its segment, so it must come before truncate()
+        @Override
+        public RaftLog remove(int i) {
+            if (i != size() - 1) {
+                throw new UnsupportedOperationException("only the last entry can be removed");
+            }
+            if (!added.isEmpty()) {
+                return added.remove(added.size() - 1);
+            }
+            RaftLog removed = lastOnDisk;
+            onDisk--;
+            lastOnDisk = onDisk > 0 ? read(onDisk) : null;
+            return removed;
+        }
+
+        // stop holding entries up to `upTo` in memory; they must already be written out
+        void release(int upTo) {
+            int n = Math.min(upTo - onDisk, added.size());
+            if (n <= 0) return;
+            lastOnDisk = added.get(n - 1);
+            added.subList(0, n).clear();
+            onDisk += n;
+        }
+
+        void reset(int onDisk) {
+            this.onDisk = onDisk;
+            this.added.clear();
+            this.lastOnDisk = onDisk > 0 ? read(onDisk) : null;
+        }
+    }
+}
@@ -49,6 +49,7 @@ public class ClientThread<T> extends Thread {
         running.set(true);
         while (running.get()) {
             Socket socket = null;
+            ServiceThread serviceThread = null;
             try {
                 if (!serverSocket.isClosed() && remoteService.isServerRunning()) {
                     socket = serverSocket.accept();
@@ -56,10 +57,10 @@ public class ClientThread<T> extends Thread {
                     break;
                 }
                 if (!socket.isClosed()) {
-                    ServiceThread serviceThread = new ServiceThread<T>(
+                    serviceThread = new ServiceThread<T>(
                             new LeakySocket(socket, remoteService.isLossy(), remoteService.isDelayed()),
                             remoteService);
-                    remoteService.runningServiceThread.put(socket.getRemoteSocketAddress(), serviceThread);
+                    remoteService.runningServiceThread.add(serviceThread);
                     serviceThread.start();
                 }
             } catch (Exception e) {
@@ -77,9 +78,7 @@ public class ClientThread<T> extends Thread {
                     remoteService.serviceLock.lock();
                     try {
                         remoteService.setServerRunning(false);
-                        ServiceThread runningThread =
-                                remoteService.runningServiceThread.get(socket.getRemoteSocketAddress());
-                        if(runningThread != null) runningThread.join();
+                        if(serviceThread != null) serviceThread.join();
                     } catch (InterruptedException ex) {
                         remoteService.serviceLock.unlock();
                         throw new RuntimeException(ex);
@@ -5,10 +5,19 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.IOException;
 import java.lang.Thread;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /** LeakySocket is a wrapper for a standard Java Socket that allows for 
     simulated message loss and packet delays. The constructor allows you
@@ -18,9 +27,32 @@ import java.util.Random;
     reader and writer instances, as the loss/delay is wrapped around
     the sending functionality.  There is no loss/delay incurred at
     the receiver, which mimics real-world scenarios (i.e., a receiver
-    should be unaware that something was sent if it was lost). */
+    should be unaware that something was sent if it was lost).
+    <p>
+    A <code>LeakySocket</code> may wrap a Unix domain socket channel instead,
+    see <code>Transport.UNIX</code>.  Such a channel has no read timeout, so
+    <code>setReadTimeout</code> closes it once the time is up instead. */
 public class LeakySocket {
+    /** Default time a lost object costs the sender, in milliseconds. */
+    public static final int LOSS_TIMEOUT = 500;
+    /** Default probability that an object is lost. */
+    public static final double LOSS_RATE = 0.05;
+    /** Default propagation delay, in milliseconds. */
+    public static final int DELAY = 2;
+
+    // closes Unix domain socket channels whose read timeout passed
+    private static final ScheduledThreadPoolExecutor closer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "remote-read-timeout");
+        t.setDaemon(true);
+        return t;
+    });
+    static {
+        closer.setRemoveOnCancelPolicy(true);
+    }
+
     private Socket s;
+    private SocketChannel channel;
+    private ScheduledFuture<?> readTimeout;
     private ObjectOutputStream writer;
     private ObjectInputStream reader;
     private boolean isLossy;
@@ -38,9 +70,25 @@ public class LeakySocket {
      * @param delayed if the client socket is delayed
      */
     public LeakySocket(String addr, boolean lossy, boolean delayed) throws IOException {
+        this(addr, lossy, delayed, 0);
+    }
+
+    /** Creates a <code>LeakySocket</code> wrapper around a new socket for a
+        given address, like the constructor above, but gives up on connecting
+        and on reading the stream header after <code>msConnect</code>
+        milliseconds; 0 waits forever.  The same limit applies to reads until
+        <code>setReadTimeout</code> changes it.
+     * @param addr client address
+     * @param lossy if the client socket is lossy
+     * @param delayed if the client socket is delayed
+     * @param msConnect connect timeout in milliseconds, 0 for none
+     */
+    public LeakySocket(String addr, boolean lossy, boolean delayed, int msConnect) throws IOException {
         String[] splitAddr = addr.split(":", 2); // address has form a.b.c.d:p
         try {
-            s = new Socket(splitAddr[0], Integer.parseInt(splitAddr[1]));
+            s = new Socket();
+            s.connect(new InetSocketAddress(splitAddr[0], Integer.parseInt(splitAddr[1])), msConnect);
+            s.setSoTimeout(msConnect);
             writer = new ObjectOutputStream(s.getOutputStream());
             writer.flush();
             reader = new ObjectInputStream(s.getInputStream());
@@ -55,11 +103,11 @@ public class LeakySocket {
         
         this.isLossy = lossy;
         this.isDelayed = delayed;
-        msDelay = 2;
+        msDelay = DELAY;
         usDelay = 0;
-        msTimeout = 500;
+        msTimeout = LOSS_TIMEOUT;
         usTimeout = 0;
-        lossRate = 0.05;
+        lossRate = LOSS_RATE;
         rng = new Random();
     }
     
@@ -83,11 +131,54 @@ public class LeakySocket {
         this.s = s;
         this.isLossy = lossy;
         this.isDelayed = delayed;
-        msDelay = 2;
+        msDelay = DELAY;
+        usDelay = 0;
+        msTimeout = LOSS_TIMEOUT;
+        usTimeout = 0;
+        lossRate = LOSS_RATE;
+        rng = new Random();
+    }
+
+    /** Creates a <code>LeakySocket</code> wrapper around a new Unix domain
+        socket channel to the given socket file, like the constructor for an
+        address above.  The connection is given up on once
+        <code>msConnect</code> milliseconds have passed without the stream
+        header; 0 waits forever.
+     * @param path socket file of the server
+     * @param lossy if the client socket is lossy
+     * @param delayed if the client socket is delayed
+     * @param msConnect connect timeout in milliseconds, 0 for none
+     */
+    public LeakySocket(Path path, boolean lossy, boolean delayed, int msConnect) throws IOException {
+        this(SocketChannel.open(UnixDomainSocketAddress.of(path)), lossy, delayed, msConnect);
+    }
+
+    /** Creates a <code>LeakySocket</code> wrapper around a connected Unix domain
+        socket channel, such as one accepted by a server.
+     * @param channel connected channel
+     * @param lossy if the socket is lossy
+     * @param delayed if the socket is delayed
+     * @param msConnect time allowed for the stream header in milliseconds, 0 for none
+     */
+    public LeakySocket(SocketChannel channel, boolean lossy, boolean delayed, int msConnect) throws IOException {
+        this.channel = channel;
+        try {
+            setReadTimeout(msConnect);
+            writer = new ObjectOutputStream(Channels.newOutputStream(channel));
+            writer.flush();
+            reader = new ObjectInputStream(Channels.newInputStream(channel));
+        } catch (IOException e) {
+            close();
+            throw new IOException(e);
+        }
+
+        this.isLossy = lossy;
+        this.isDelayed = delayed;
+        msDelay = DELAY;
         usDelay = 0;
-        msTimeout = 500;
+        msTimeout = LOSS_TIMEOUT;
         usTimeout = 0;
-        lossRate = 0.05;
+        lossRate = LOSS_RATE;
         rng = new Random();
     }
 
@@ -110,7 +201,7 @@ public class LeakySocket {
      * @throws IOException Unable to output object
      */
     public boolean sendObject(Object obj) throws IOException {
-        if(s != null) {
+        if(s != null || channel != null) {
             if(isLossy && rng.nextDouble() < lossRate) {
                 // send failure occurred
                 try {
@@ -148,6 +239,32 @@ public class LeakySocket {
         return false;
     }
 
+    /** The <code>sendTrafficClass(TrafficClass)</code> method announces the
+        class of the call about to be sent, ahead of its request.  It is not
+        flushed on its own, so that it goes out in the same segment as the
+        request, and it is never lost or delayed by itself.
+     * @param trafficClass class of the call on this socket
+     * @throws IOException Unable to output the class
+     */
+    public void sendTrafficClass(TrafficClass trafficClass) throws IOException {
+        if(s != null || channel != null) {
+            writer.writeByte(trafficClass.ordinal());
+        }
+    }
+
+    /** The <code>recvTrafficClass()</code> method blocks until the class of
+        the call is received, as sent by <code>sendTrafficClass</code>.
+     * @return class of the call on this socket
+     * @throws IOException Unable to receive the class
+     */
+    public TrafficClass recvTrafficClass() throws IOException {
+        int ordinal = reader.readByte();
+        if (ordinal < 0 || ordinal >= TrafficClass.values().length) {
+            throw new IOException("Unknown traffic class " + ordinal);
+        }
+        return TrafficClass.values()[ordinal];
+    }
+
     /** The <code>recvObject()</code> method will block the open socket until a
         Java object is received.  There is no simulated loss or delay at the 
         receiver side of an object transmission.  The method returns the
@@ -156,7 +273,7 @@ public class LeakySocket {
      * @throws IOException Unable to receive object
      */
     public Object recvObject() throws IOException {
-        if(s != null) {
+        if(s != null || channel != null) {
             Object obj = null;
             try {
                 obj = reader.readObject();
@@ -185,6 +302,28 @@ public class LeakySocket {
         this.usDelay = us;
     }
     
+    /** The <code>setReadTimeout()</code> method limits how long
+        <code>recvTrafficClass</code> and <code>recvObject</code> block, after
+        which they fail with an <code>IOException</code> caused by a
+        <code>SocketTimeoutException</code>.  A Unix domain socket channel is
+        closed instead once <code>ms</code> milliseconds have passed, which fails
+        any read then still blocked, and any later one.
+     * @param ms milliseconds, 0 to wait forever
+     * @throws IOException Unable to set the timeout
+     */
+    public void setReadTimeout(int ms) throws IOException {
+        if(s != null) {
+            s.setSoTimeout(ms);
+        } else if(channel != null) {
+            synchronized (this) {
+                if(readTimeout != null) {
+                    readTimeout.cancel(false);
+                }
+                readTimeout = ms > 0 ? closer.schedule(this::close, ms, TimeUnit.MILLISECONDS) : null;
+            }
+        }
+    }
+
     /** The <code>setTimeout()</code> method allows for changing the timeout
         duration incurred when a packet is lost, again including both milli-
         and micro-second components.
@@ -208,6 +347,21 @@ public class LeakySocket {
         this.lossRate = (rate > 1 ? 1 : (rate < 0 ? 0 : rate));
     }
     
+    /** The <code>getRemoteSocketAddress()</code> method wraps the corresponding
+        functionality of the underlying Java Socket.
+     * @return address of the other end, or <code>null</code> if not connected
+     */
+    public SocketAddress getRemoteSocketAddress() {
+        if(channel != null) {
+            try {
+                return channel.getRemoteAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return s == null ? null : s.getRemoteSocketAddress();
+    }
+
     /** The <code>close()</code> method wraps the corresponding functionality
         of the underlying Java Socket.   */
     public void close() {
@@ -218,6 +372,19 @@ public class LeakySocket {
                 System.out.println("Socket close error");
                 e.printStackTrace();
             }
+        } else if(channel != null) {
+            synchronized (this) {
+                if(readTimeout != null) {
+                    readTimeout.cancel(false);
+                    readTimeout = null;
+                }
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Socket close error");
+                e.printStackTrace();
+            }
         }
     }
 }
@@ -22,19 +22,36 @@ public class Message implements Serializable {
      * parameterTypes.
      */
     private Class<?>[] parameterTypes;
+    /**
+     * milliseconds the caller still waits for the response, as of sending; 0 for no deadline.
+     */
+    private int timeout;
 
     /**
-     * constructor of message class.
+     * constructor of message class, for a call without deadline.
      * @param className class name
      * @param methodName method name
      * @param args arguments
      * @param parameterTypes parameter types
      */
     public Message(String className, String methodName, Object[] args, Class<?>[] parameterTypes) {
+        this(className, methodName, args, parameterTypes, 0);
+    }
+
+    /**
+     * constructor of message class.
+     * @param className class name
+     * @param methodName method name
+     * @param args arguments
+     * @param parameterTypes parameter types
+     * @param timeout milliseconds left until the caller's deadline, 0 for none
+     */
+    public Message(String className, String methodName, Object[] args, Class<?>[] parameterTypes, int timeout) {
         this.className = className;
         this.methodName = methodName;
         this.args = args;
         this.parameterTypes = parameterTypes;
+        this.timeout = timeout;
     }
 
     /**
@@ -68,4 +85,12 @@ public class Message implements Serializable {
     public Class<?>[] getParameterTypes() {
         return parameterTypes;
     }
+
+    /**
+     * get the time left until the caller's deadline when the message was sent.
+     * @return milliseconds, 0 for no deadline
+     */
+    public int getTimeout() {
+        return timeout;
+    }
 }
@@ -6,10 +6,16 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 /** Remote Object Service
@@ -25,22 +31,51 @@ import java.util.concurrent.locks.ReentrantLock;
     in the interface should be marked as throwing <code>RemoteObjectException</code>,
     in addition to any other exceptions as needed.
     <p>
+    Every call names its <code>TrafficClass</code> first.  A <code>CONTROL</code>
+    request is read as soon as it arrives, while at most <code>BULK_RECEIVERS</code>
+    <code>BULK</code> requests are read at a time; the methods they call still run
+    concurrently.  A <code>BULK</code> request must arrive within
+    <code>BULK_READ_TIMEOUT</code> of its class, or its connection is dropped,
+    so that a stalled caller cannot keep the others waiting.  A request whose caller's deadline passed while it waited
+    is answered with a <code>RemoteObjectException</code> instead of being
+    called.
+    <p>
+    A <code>Service</code> created with <code>Transport.UNIX</code> also accepts
+    calls on its Unix domain socket, from stubs on the same host.  One created
+    with <code>Transport.IN_PROCESS</code> or <code>IN_PROCESS_COPY</code> takes
+    calls from stubs in the same JVM directly while it is running.
+    <p>
     Exceptions may occur at the top level in the listening and service threads.
     The <code>Service</code>'s response to these exceptions can be customized by deriving
     a class from <code>Service</code> and overriding <code>listen_error</code>
     or <code>service_error</code>.
 */
 public class Service<T> {
+    /** The number of <code>BULK</code> requests read at a time, from the
+        <code>remote.bulkReceivers</code> property. */
+    public static final int BULK_RECEIVERS = Integer.getInteger("remote.bulkReceivers", 2);
+    /** How long reading one <code>BULK</code> request may take, in milliseconds,
+        from the <code>remote.bulkReadTimeout</code> property. */
+    public static final int BULK_READ_TIMEOUT = Integer.getInteger("remote.bulkReadTimeout", 1000);
+    // running services that take calls in this JVM directly, by port
+    private static final Map<Integer, Service<?>> inProcessServices = new ConcurrentHashMap<>();
+
     private final Class<T> c;
     private final T svc;
     private final int port;
     private final boolean lossy;
     private final boolean delayed;
+    private final Transport transport;
     ServerSocket serverSocket;
+    ServerSocketChannel unixChannel;
     private ClientThread<T> clientThread;
+    private UnixClientThread<T> unixClientThread;
     private boolean isServerRunning;
     ReentrantLock serviceLock;
-    Map<SocketAddress, ServiceThread> runningServiceThread;
+    // keyed by thread rather than by client address, which is the same for every Unix domain socket client
+    Set<ServiceThread> runningServiceThread;
+    Semaphore bulkReceivers;
+    AtomicLong expiredCalls;
 
     /** The first constructor creates a <code>Service</code> that is bound to
         a given remote interface, instantiated object, and server port number.
@@ -82,7 +117,31 @@ public class Service<T> {
                                      <code>svc</code> is <code>null</code>.
      */
     public Service(Class<T> c, T svc, int port, boolean lossy, boolean delayed) {
-        if (svc == null) {
+        this(c, svc, port, lossy, delayed, Transport.TCP);
+    }
+
+    /** The third constructor creates a <code>Service</code> similar to the
+        second one, which with <code>Transport.UNIX</code> also listens on the
+        Unix domain socket for <code>port</code>, see <code>Transport</code>.
+        @param c      A representation of the class of the interface that the
+                      Service must handle method call requests for.
+        @param svc    An instantiated object that implements the interface
+                      indicated by <code>c</code>.  Upon receipt of requests for
+                      method calls, the Service invokes those calls on this object.
+        @param port   server port.
+        @param lossy  A flag that indicates whether or not Objects can be lost
+                      between sender and receiver, resulting in timeout.
+        @param delayed A flag that indicates whether propagation delay is incurred
+                      when sending an Object from sender to receiver.
+        @param transport The transports to accept calls on.
+        @throws Error If <code>c</code> does not represent a remote interface, i.e.,
+                      an interface whose methods all throw 
+                      <code>RemoteObjectException</code>.
+        @throws NullPointerException If any of <code>c</code>, <code>svc</code>
+                                     or <code>transport</code> is <code>null</code>.
+     */
+    public Service(Class<T> c, T svc, int port, boolean lossy, boolean delayed, Transport transport) {
+        if (svc == null || transport == null) {
             throw new NullPointerException("The instantiated object cannot be null");
         }
         checkIfRemoteInterface(c);
@@ -91,9 +150,12 @@ public class Service<T> {
         this.port = port;
         this.lossy = lossy;
         this.delayed = delayed;
+        this.transport = transport;
         this.isServerRunning = false;
         this.serviceLock = new ReentrantLock();
-        this.runningServiceThread = new ConcurrentHashMap<>();
+        this.runningServiceThread = ConcurrentHashMap.newKeySet();
+        this.bulkReceivers = new Semaphore(BULK_RECEIVERS, true);
+        this.expiredCalls = new AtomicLong();
     }
 
     /**
@@ -186,10 +248,58 @@ public class Service<T> {
             serviceLock.unlock();
             throw new RemoteObjectException(e.getMessage());
         }
+        if (transport == Transport.UNIX) {
+            try {
+                unixChannel = openUnixChannel();
+            } catch (IOException e) {
+                try {
+                    serverSocket.close();
+                } catch (IOException ex) {
+                    // the bind error is the one to report
+                }
+                serviceLock.unlock();
+                throw new RemoteObjectException(e.getMessage());
+            }
+        }
         serviceLock.unlock();
         setServerRunning(true);
         clientThread = new ClientThread<>(serverSocket, this);
         clientThread.start();
+        if (unixChannel != null) {
+            unixClientThread = new UnixClientThread<>(unixChannel, this);
+            unixClientThread.start();
+        }
+        if (transport == Transport.IN_PROCESS || transport == Transport.IN_PROCESS_COPY) {
+            inProcessServices.put(port, this);
+        }
+    }
+
+    /**
+     * get the service running in this JVM on a port, for stubs that call it directly.
+     * @param port server port
+     * @return the service, or null if none takes calls directly on the port
+     */
+    static Service<?> inProcess(int port) {
+        return inProcessServices.get(port);
+    }
+
+    /**
+     * bind the Unix domain socket of this service.  A file left at its path
+     * belongs to a service that is gone, since this one holds the TCP port.
+     * @return the bound channel
+     * @throws IOException if the socket cannot be created or bound
+     */
+    private ServerSocketChannel openUnixChannel() throws IOException {
+        Path path = Transport.socketPath(port);
+        Files.deleteIfExists(path);
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.bind(UnixDomainSocketAddress.of(path));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
     }
 
 
@@ -203,9 +313,16 @@ public class Service<T> {
      */
     public synchronized void stop() {
         setServerRunning(false);
+        // later direct calls go to TCP instead, and fail as the port is closed
+        inProcessServices.remove(port, this);
         try {
             serverSocket.close();
-            for (ServiceThread t: runningServiceThread.values()) {
+            if (unixChannel != null) {
+                unixChannel.close();
+                Files.deleteIfExists(Transport.socketPath(port));
+                unixChannel = null;
+            }
+            for (ServiceThread t: runningServiceThread) {
                 t.join();
             }
             clientThread.interrupt();
@@ -255,6 +372,22 @@ public class Service<T> {
         return delayed;
     }
 
+    /**
+     * get the transports the service accepts calls on.
+     * @return TCP, or another transport the service takes calls on besides TCP
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * get the number of calls dropped because their deadline passed before they started.
+     * @return number of expired calls
+     */
+    public long getExpiredCalls() {
+        return expiredCalls.get();
+    }
+
     /**
      * get server status
      * @return server status
@@ -5,6 +5,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.Socket;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /**
  * service thread to run a remote service.
@@ -13,6 +14,10 @@ import java.util.Arrays;
 public class ServiceThread<T> extends Thread {
     Service<T> service;
     LeakySocket leakySocket;
+    /**
+     * System.nanoTime() when the request started to arrive.
+     */
+    private long arrival;
 
     /**
      * constructor of serviceThread.
@@ -24,6 +29,43 @@ public class ServiceThread<T> extends Thread {
         this.service = service;
     }
 
+    /**
+     * read the request, after the other BULK requests ahead of it if it is one.
+     * a BULK request is read with a timeout of Service.BULK_READ_TIMEOUT, as its permit is held meanwhile.
+     * @return the request
+     * @throws IOException Unable to receive the request, or it did not arrive in time
+     * @throws InterruptedException if interrupted while waiting to read it
+     */
+    private Message receive() throws IOException, InterruptedException {
+        TrafficClass trafficClass = leakySocket.recvTrafficClass();
+        arrival = System.nanoTime();
+        if (trafficClass == TrafficClass.CONTROL) {
+            return (Message) leakySocket.recvObject();
+        }
+        service.bulkReceivers.acquire();
+        try {
+            // a caller that stalls in the middle of its request must not keep the permit from the
+            // requests behind it; a timed-out read fails and the connection is dropped
+            leakySocket.setReadTimeout(Service.BULK_READ_TIMEOUT);
+            Message received = (Message) leakySocket.recvObject();
+            // a Unix domain socket would otherwise still be closed when the time is up
+            leakySocket.setReadTimeout(0);
+            return received;
+        } finally {
+            service.bulkReceivers.release();
+        }
+    }
+
+    /**
+     * check whether the caller's deadline passed while the request arrived and waited.
+     * @param received the request
+     * @return true if the caller has already given up on it
+     */
+    private boolean isExpired(Message received) {
+        return received.getTimeout() > 0 &&
+                System.nanoTime() - arrival >= TimeUnit.MILLISECONDS.toNanos(received.getTimeout());
+    }
+
     /**
      * run the service thread.
      */
@@ -31,7 +73,14 @@ public class ServiceThread<T> extends Thread {
     public void run() {
         try {
             if (service.isServerRunning()) {
-                Message received = (Message) leakySocket.recvObject();
+                Message received = receive();
+                if (isExpired(received)) {
+                    // the caller has given up on the response, so the call would be wasted work
+                    service.expiredCalls.incrementAndGet();
+                    leakySocket.sendObject(new RemoteObjectException("deadline exceeded before "
+                            + received.getMethodName() + " started"));
+                    return;
+                }
                 try {
                     Method method = service.getC().getMethod(received.getMethodName(), received.getParameterTypes());
                     Object res = method.invoke(service.getSvc(), received.getArgs());
@@ -46,10 +95,12 @@ public class ServiceThread<T> extends Thread {
             try {
                 leakySocket.sendObject(e);
             } catch (IOException ex) {
-                throw new RuntimeException(ex);
+                // the caller is gone, e.g. past its deadline
             }
         } finally {
             leakySocket.close();
+            // the socket's input stream holds on to every object it read, request arguments included
+            service.runningServiceThread.remove(this);
         }
     }
 }
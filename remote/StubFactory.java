@@ -5,6 +5,8 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /** Remote Object stub factory.
     <p>
@@ -14,8 +16,14 @@ import java.net.Socket;
     <p>
     The network address of the remote Service is set when a stub is created, and
     may not be modified afterwards.
+    <p>
+    A stub keeps no state between calls, so stubs are cached: creating a stub for
+    the same interface, address and options again returns the same object, without
+    checking the interface or building a proxy again.
  */
 public abstract class StubFactory {
+    private static final ConcurrentMap<StubKey, Object> stubs = new ConcurrentHashMap<>();
+
     /**
      * constructor of StubFactory
      */
@@ -62,9 +70,134 @@ public abstract class StubFactory {
         @throws NullPointerException If <code>c</code> is <code>null</code>.
      */
     public static <T> T create(Class<T> c, String addr, boolean sockLoses, boolean sockDelays) {
-        if (c == null || addr == null) {
+        return create(c, addr, sockLoses, sockDelays, TrafficClass.BULK);
+    }
+
+    /** The third static <code>create</code> method creates a Stub whose calls
+        all belong to the given <code>TrafficClass</code>, with no loss or delay.
+        A peer that sends both small, time-critical calls and large ones to the
+        same Service should use one stub of each class.
+        @param c      A representation of the class of the interface that the
+                      Service must handle method call requests for.
+        @param addr   The network address of the Service as "ip:port"
+        @param trafficClass The class of every call made through the stub.
+        @return The stub created.
+        @param <T> type parameter
+        @throws Error If <code>c</code> does not represent a remote interface, i.e.,
+                      an interface whose methods all throw <code>RemoteObjectException</code>.
+        @throws NullPointerException If <code>c</code> is <code>null</code>.
+     */
+    public static <T> T create(Class<T> c, String addr, TrafficClass trafficClass) {
+        return create(c, addr, false, false, trafficClass);
+    }
+
+    /** The fourth static <code>create</code> method creates a Stub of the given
+        <code>TrafficClass</code> whose calls each fail with a
+        <code>RemoteObjectException</code> once <code>timeout</code> milliseconds
+        have passed without a response.  The time left is sent along with each
+        request, and the Service drops a request that waited past it before its
+        method started.
+        @param c      A representation of the class of the interface that the
+                      Service must handle method call requests for.
+        @param addr   The network address of the Service as "ip:port"
+        @param trafficClass The class of every call made through the stub.
+        @param timeout The deadline of each call in milliseconds, 0 for none.
+        @return The stub created.
+        @param <T> type parameter
+        @throws Error If <code>c</code> does not represent a remote interface, i.e.,
+                      an interface whose methods all throw <code>RemoteObjectException</code>.
+        @throws NullPointerException If <code>c</code> is <code>null</code>.
+     */
+    public static <T> T create(Class<T> c, String addr, TrafficClass trafficClass, int timeout) {
+        return create(c, addr, false, false, trafficClass, timeout);
+    }
+
+    /** The fifth static <code>create</code> method combines the loss and delay
+        flags with a <code>TrafficClass</code>, with no deadline.
+        @param c      A representation of the class of the interface that the
+                      Service must handle method call requests for.
+        @param addr   The network address of the Service as "ip:port"
+        @param sockLoses  A flag that indicates whether or not Objects can be lost
+                      between sender and receiver, resulting in timeout.
+        @param sockDelays A flag that indicates whether propagation delay is incurred
+                      when sending an Object from sender to receiver.
+        @param trafficClass The class of every call made through the stub.
+        @return The stub created.
+        @param <T> type parameter
+        @throws Error If <code>c</code> does not represent a remote interface, i.e.,
+                      an interface whose methods all throw <code>RemoteObjectException</code>.
+        @throws NullPointerException If <code>c</code> is <code>null</code>.
+     */
+    public static <T> T create(Class<T> c, String addr, boolean sockLoses, boolean sockDelays,
+                               TrafficClass trafficClass) {
+        return create(c, addr, sockLoses, sockDelays, trafficClass, 0);
+    }
+
+    /** The sixth static <code>create</code> method takes the loss and delay
+        flags, the <code>TrafficClass</code> and the deadline of each call, and
+        creates a <code>TCP</code> stub.  With a deadline, a lost request costs
+        the sender at most the time left before it.
+        @param c      A representation of the class of the interface that the
+                      Service must handle method call requests for.
+        @param addr   The network address of the Service as "ip:port"
+        @param sockLoses  A flag that indicates whether or not Objects can be lost
+                      between sender and receiver, resulting in timeout.
+        @param sockDelays A flag that indicates whether propagation delay is incurred
+                      when sending an Object from sender to receiver.
+        @param trafficClass The class of every call made through the stub.
+        @param timeout The deadline of each call in milliseconds, 0 for none.
+        @return The stub created.
+        @param <T> type parameter
+        @throws Error If <code>c</code> does not represent a remote interface, i.e.,
+                      an interface whose methods all throw <code>RemoteObjectException</code>.
+        @throws NullPointerException If <code>c</code> is <code>null</code>.
+     */
+    public static <T> T create(Class<T> c, String addr, boolean sockLoses, boolean sockDelays,
+                               TrafficClass trafficClass, int timeout) {
+        return create(c, addr, sockLoses, sockDelays, trafficClass, timeout, Transport.TCP);
+    }
+
+    /** The last static <code>create</code> method takes every option, the
+        <code>Transport</code> included.  The other methods create
+        <code>BULK</code> stubs without deadline over <code>TCP</code> unless
+        they say otherwise.  A <code>UNIX</code> stub for a local address
+        requires the Service to have been created with <code>UNIX</code> too.
+        @param c      A representation of the class of the interface that the
+                      Service must handle method call requests for.
+        @param addr   The network address of the Service as "ip:port"
+        @param sockLoses  A flag that indicates whether or not Objects can be lost
+                      between sender and receiver, resulting in timeout.
+        @param sockDelays A flag that indicates whether propagation delay is incurred
+                      when sending an Object from sender to receiver.
+        @param trafficClass The class of every call made through the stub.
+        @param timeout The deadline of each call in milliseconds, 0 for none.
+        @param transport The transport of every call made through the stub.
+        @return The stub created.
+        @param <T> type parameter
+        @throws Error If <code>c</code> does not represent a remote interface, i.e.,
+                      an interface whose methods all throw <code>RemoteObjectException</code>.
+        @throws NullPointerException If <code>c</code> is <code>null</code>.
+     */
+    public static <T> T create(Class<T> c, String addr, boolean sockLoses, boolean sockDelays,
+                               TrafficClass trafficClass, int timeout, Transport transport) {
+        if (c == null || addr == null || trafficClass == null || transport == null) {
             throw new NullPointerException("The class representation cannot be null");
         }
+        if (timeout < 0) {
+            throw new IllegalArgumentException("negative timeout " + timeout);
+        }
+        return (T) stubs.computeIfAbsent(
+                new StubKey(c, addr, sockLoses, sockDelays, trafficClass, timeout, transport),
+                StubFactory::newStub);
+    }
+
+    /** Creates the stub for a key that is not cached yet.
+        @param key    The interface, address and options of the stub.
+        @return The stub created.
+        @throws Error If the interface is not a remote interface.
+     */
+    private static Object newStub(StubKey key) {
+        Class<?> c = key.c;
         for (Method method: c.getMethods()) {
             boolean foundRemoteException = false;
             for (Class<?> exceptionType: method.getExceptionTypes()) {
@@ -76,7 +209,49 @@ public abstract class StubFactory {
                 throw new Error("C does not represent a remote interface");
             }
         }
-        InvocationHandler handler = new StubInvocationHandler(addr, sockLoses, sockDelays, c);
-        return (T) Proxy.newProxyInstance(c.getClassLoader(), new Class[] { c }, handler);
-    }    
-}
+        InvocationHandler handler = new StubInvocationHandler(
+                key.addr, key.sockLoses, key.sockDelays, c, key.trafficClass, key.timeout, key.transport);
+        return Proxy.newProxyInstance(c.getClassLoader(), new Class[] { c }, handler);
+    }
+
+    /** The interface, address and options a stub is cached under. */
+    private static final class StubKey {
+        final Class<?> c;
+        final String addr;
+        final boolean sockLoses;
+        final boolean sockDelays;
+        final TrafficClass trafficClass;
+        final int timeout;
+        final Transport transport;
+
+        StubKey(Class<?> c, String addr, boolean sockLoses, boolean sockDelays, TrafficClass trafficClass,
+                int timeout, Transport transport) {
+            this.c = c;
+            this.addr = addr;
+            this.sockLoses = sockLoses;
+            this.sockDelays = sockDelays;
+            this.trafficClass = trafficClass;
+            this.timeout = timeout;
+            this.transport = transport;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof StubKey)) {
+                return false;
+            }
+            StubKey k = (StubKey) o;
+            return c == k.c && addr.equals(k.addr) && sockLoses == k.sockLoses && sockDelays == k.sockDelays
+                    && trafficClass == k.trafficClass && timeout == k.timeout && transport == k.transport;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = c.hashCode() * 31 + addr.hashCode();
+            h = h * 31 + (sockLoses ? 1 : 0) * 2 + (sockDelays ? 1 : 0);
+            h = h * 31 + trafficClass.hashCode();
+            h = h * 31 + timeout;
+            return h * 31 + transport.hashCode();
+        }
+    }
+}
\ No newline at end of file
@@ -1,9 +1,17 @@
 package remote;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * a stub invocation handler to send request message to remote service and receive response message.
@@ -14,19 +22,61 @@ public class StubInvocationHandler<T> implements InvocationHandler {
     private String addr;
     private boolean isLossy;
     private boolean isDelayed;
+    private TrafficClass trafficClass;
+    private int timeout;
+    // socket file of the service when calls go over a Unix domain socket, or null for TCP
+    private Path socketPath;
+    // port of the service when it may be called directly in this JVM, or -1
+    private int inProcessPort;
+    // whether direct calls copy their arguments and result
+    private boolean copyOnSend;
 
     /**
-     * constructor of stubInvocationHandler.
+     * constructor of stubInvocationHandler, for BULK calls.
      * @param addr client address
      * @param isLossy if the socket is lossy
      * @param isDelayed if the socket is delayed.
      * @param targetClass the target remote service class
      */
     public StubInvocationHandler(String addr, boolean isLossy, boolean isDelayed, Class<T> targetClass) {
+        this(addr, isLossy, isDelayed, targetClass, TrafficClass.BULK, 0);
+    }
+
+    /**
+     * constructor of stubInvocationHandler.
+     * @param addr client address
+     * @param isLossy if the socket is lossy
+     * @param isDelayed if the socket is delayed.
+     * @param targetClass the target remote service class
+     * @param trafficClass class of every call made through the stub
+     * @param timeout milliseconds each call may take before it fails, 0 for no deadline
+     */
+    public StubInvocationHandler(String addr, boolean isLossy, boolean isDelayed, Class<T> targetClass,
+                                 TrafficClass trafficClass, int timeout) {
+        this(addr, isLossy, isDelayed, targetClass, trafficClass, timeout, Transport.TCP);
+    }
+
+    /**
+     * constructor of stubInvocationHandler.
+     * @param addr client address
+     * @param isLossy if the socket is lossy
+     * @param isDelayed if the socket is delayed.
+     * @param targetClass the target remote service class
+     * @param trafficClass class of every call made through the stub
+     * @param timeout milliseconds each call may take before it fails, 0 for no deadline
+     * @param transport transport of the calls
+     */
+    public StubInvocationHandler(String addr, boolean isLossy, boolean isDelayed, Class<T> targetClass,
+                                 TrafficClass trafficClass, int timeout, Transport transport) {
+        this.socketPath = transport.socketPath(addr);
+        this.inProcessPort = transport.inProcessPort(addr);
+        this.copyOnSend = transport == Transport.IN_PROCESS_COPY;
         this.targetClass = targetClass;
         this.addr = addr;
         this.isLossy = isLossy;
         this.isDelayed = isDelayed;
+        this.trafficClass = trafficClass;
+        this.timeout = timeout;
     }
 
     /**
@@ -51,42 +101,194 @@ public class StubInvocationHandler<T> implements InvocationHandler {
      */
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+        if (inProcessPort >= 0) {
+            Service<?> service = Service.inProcess(inProcessPort);
+            if (service != null) {
+                return invokeInProcess(service, method, args, deadline);
+            }
+        }
         LeakySocket leakySocket = null;
         try {
-            leakySocket = new LeakySocket(addr, isLossy, isDelayed);
+            leakySocket = socketPath != null ?
+                    new LeakySocket(socketPath, isLossy, isDelayed, timeout) :
+                    new LeakySocket(addr, isLossy, isDelayed, timeout);
         } catch (Exception e) {
             throw new RemoteObjectException(e.getMessage());
         }
 
-        Class<?>[] types = method.getParameterTypes();
-        Message msg = new Message(targetClass.getName(), method.getName(), args, types);
-        boolean isSent = false;
-        while (!isSent) {
+        try {
+            Class<?>[] types = method.getParameterTypes();
+            boolean isSent = false;
             try {
-                isSent = leakySocket.sendObject(msg);
+                leakySocket.sendTrafficClass(trafficClass);
             } catch (IOException e) {
                 throw new RemoteObjectException(e.getMessage());
             }
+            while (!isSent) {
+                int left = timeLeft(deadline, method);
+                if (deadline != 0) {
+                    // a lost request costs at most what is left of the deadline
+                    leakySocket.setTimeout(Math.min(LeakySocket.LOSS_TIMEOUT, left), 0);
+                }
+                Message msg = new Message(targetClass.getName(), method.getName(), args, types, left);
+                try {
+                    isSent = leakySocket.sendObject(msg);
+                } catch (IOException e) {
+                    throw new RemoteObjectException(e.getMessage());
+                }
+            }
+
+            Object result = null;
+            try {
+                if (deadline != 0) {
+                    leakySocket.setReadTimeout(timeLeft(deadline, method));
+                }
+                result = leakySocket.recvObject();
+            } catch (IOException e) {
+                if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+                    throw deadlineExceeded(method);
+                }
+                if (!e.getMessage().contains("EOFException")) {
+                    throw new RemoteObjectException(e.getMessage());
+                }
+            }
+            if (result instanceof Exception) {
+                if (result instanceof NoSuchMethodException) {
+                    throw new RemoteObjectException("NoSuchMethodException");
+                } else {
+                    throw new RemoteObjectException(((Exception) result).getMessage());
+                }
+            }
+            return result;
+        } finally {
+            leakySocket.close();
         }
+    }
 
-        Object result = null;
+    /**
+     * call a service running in this JVM directly on the caller's thread.  loss and delay are
+     * simulated on both ends as by LeakySocket: a lost request is sent again, and a lost response
+     * leaves the call with no result, as when the service closes the socket.
+     * @param service the service
+     * @param method the method called
+     * @param args the arguments
+     * @param deadline System.nanoTime() of the deadline, 0 for none
+     * @return the response object
+     * @throws RemoteObjectException if the call fails, like a call over a socket
+     */
+    private Object invokeInProcess(Service<?> service, Method method, Object[] args, long deadline)
+            throws RemoteObjectException {
+        while (isLossy && ThreadLocalRandom.current().nextDouble() < LeakySocket.LOSS_RATE) {
+            int left = timeLeft(deadline, method);
+            sleep(deadline != 0 ? Math.min(LeakySocket.LOSS_TIMEOUT, left) : LeakySocket.LOSS_TIMEOUT);
+        }
+        if (isDelayed) {
+            sleep(LeakySocket.DELAY);
+        }
+        timeLeft(deadline, method);
+        if (copyOnSend && args != null) {
+            args = (Object[]) copy(args, service);
+        }
+        Object svc = service.getSvc();
+        Object result;
         try {
-            result = leakySocket.recvObject();
-        } catch (IOException e) {
-            if (!e.getMessage().contains("EOFException")) {
-                throw new RemoteObjectException(e.getMessage());
+            if (method.getDeclaringClass().isInstance(svc)) {
+                result = method.invoke(svc, args);
+            } else {
+                result = service.getC().getMethod(method.getName(), method.getParameterTypes()).invoke(svc, args);
             }
+        } catch (InvocationTargetException e) {
+            throw new RemoteObjectException(e.getTargetException().getMessage());
+        } catch (NoSuchMethodException e) {
+            throw new RemoteObjectException("NoSuchMethodException");
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            throw new RemoteObjectException(e.getMessage());
         }
-        if (result instanceof Exception) {
-            if (result instanceof NoSuchMethodException) {
-                throw new RemoteObjectException("NoSuchMethodException");
-            } else {
-                throw new RemoteObjectException(((Exception) result).getMessage());
+        if (service.isDelayed()) {
+            sleep(LeakySocket.DELAY);
+        }
+        if (service.isLossy() && ThreadLocalRandom.current().nextDouble() < LeakySocket.LOSS_RATE) {
+            int left = timeLeft(deadline, method);
+            sleep(deadline != 0 ? Math.min(LeakySocket.LOSS_TIMEOUT, left) : LeakySocket.LOSS_TIMEOUT);
+            result = null;
+        }
+        if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+            throw deadlineExceeded(method);
+        }
+        return copyOnSend ? copy(result, null) : result;
+    }
+
+    /**
+     * copy an object through serialization, as sending it over a socket would.
+     * @param obj the object
+     * @param service the service whose BULK receivers the copy counts against, or null
+     * @return the copy
+     * @throws RemoteObjectException if the object cannot be serialized
+     */
+    private Object copy(Object obj, Service<?> service) throws RemoteObjectException {
+        if (obj == null) {
+            return null;
+        }
+        boolean acquired = false;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(obj);
+            }
+            if (service != null && trafficClass == TrafficClass.BULK) {
+                service.bulkReceivers.acquire();
+                acquired = true;
+            }
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                return in.readObject();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            throw new RemoteObjectException(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteObjectException("interrupted");
+        } finally {
+            if (acquired) {
+                service.bulkReceivers.release();
             }
         }
-        if (leakySocket != null) {
-            leakySocket.close();
+    }
+
+    /**
+     * sleep for a simulated delay or loss.
+     * @param ms milliseconds
+     * @throws RemoteObjectException if interrupted
+     */
+    private static void sleep(int ms) throws RemoteObjectException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteObjectException("interrupted");
         }
-        return result;
+    }
+
+    /**
+     * get the time left until the deadline of a call.
+     * @param deadline System.nanoTime() of the deadline, 0 for none
+     * @param method the method called
+     * @return milliseconds left, 0 if there is no deadline
+     * @throws RemoteObjectException if the deadline has passed
+     */
+    private int timeLeft(long deadline, Method method) throws RemoteObjectException {
+        if (deadline == 0) {
+            return 0;
+        }
+        long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (left <= 0) {
+            throw deadlineExceeded(method);
+        }
+        return (int) left;
+    }
+
+    private RemoteObjectException deadlineExceeded(Method method) {
+        return new RemoteObjectException(String.format("%s to %s: deadline of %d ms exceeded",
+                method.getName(), addr, timeout));
     }
 }
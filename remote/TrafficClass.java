@@ -0,0 +1,18 @@
+package remote;
+
+/** Traffic class of the calls made through a stub.
+    <p>
+    Every call opens its own connection, and the stub tells the <code>Service</code>
+    the class of the call before the request itself.  The <code>Service</code> reads
+    a <code>CONTROL</code> request as soon as it arrives.  It lets only a few
+    <code>BULK</code> requests be read at a time, see <code>Service.BULK_RECEIVERS</code>,
+    and the rest wait unread in their connections.  A flood of large requests therefore
+    cannot hold up small, time-critical ones, such as heartbeats and votes, while they
+    compete for the CPU and heap that decoding takes.
+ */
+public enum TrafficClass {
+    /** Small, latency-sensitive calls, such as heartbeats and votes. */
+    CONTROL,
+    /** Everything else, such as log replication and client requests. */
+    BULK
+}
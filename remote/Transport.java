@@ -0,0 +1,91 @@
+package remote;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/** Transport between stubs and a <code>Service</code>.
+    <p>
+    <code>TCP</code> connects to the address of the <code>Service</code> as given.
+    With <code>UNIX</code>, a stub whose <code>Service</code> runs on the same host
+    connects to a Unix domain socket instead, which skips the loopback TCP stack.
+    A <code>Service</code> created with <code>UNIX</code> listens on its socket
+    file as well as on its TCP port, so <code>TCP</code> stubs and stubs from other
+    hosts still reach it.  The file of the <code>Service</code> on port
+    <code>p</code> is <code>remote-p.sock</code>, in the directory given by the
+    <code>remote.socketDir</code> property or else the temporary directory.
+    <p>
+    With <code>IN_PROCESS</code> or <code>IN_PROCESS_COPY</code>, a stub whose
+    <code>Service</code> runs in the same JVM, created with either of them,
+    calls the object of the <code>Service</code> directly on the caller's
+    thread, with no socket.  Such a <code>Service</code> also listens on its
+    TCP port, and a stub whose <code>Service</code> is stopped or elsewhere
+    calls over TCP.  <code>IN_PROCESS</code> passes the arguments and the
+    result by reference, while <code>IN_PROCESS_COPY</code> copies them through
+    serialization so that caller and callee share no objects, as over a socket.
+    Loss and delay are simulated as by <code>LeakySocket</code>.  A call made
+    directly cannot be cut short, so its deadline is checked before it starts
+    and after it returns.
+ */
+public enum Transport {
+    /** Every call goes over TCP. */
+    TCP,
+    /** Calls to a local <code>Service</code> go over its Unix domain socket. */
+    UNIX,
+    /** Calls to a <code>Service</code> in this JVM are made directly, sharing objects. */
+    IN_PROCESS,
+    /** Calls to a <code>Service</code> in this JVM are made directly on copies of the objects. */
+    IN_PROCESS_COPY;
+
+    /** The directory of the socket files, from the <code>remote.socketDir</code>
+        property. */
+    public static final String SOCKET_DIR =
+            System.getProperty("remote.socketDir", System.getProperty("java.io.tmpdir"));
+
+    /** Returns the socket file of the <code>Service</code> on a port.
+        @param port   The TCP port of the Service.
+        @return The path of its Unix domain socket.
+     */
+    public static Path socketPath(int port) {
+        return Paths.get(SOCKET_DIR, "remote-" + port + ".sock");
+    }
+
+    /** Returns the socket file to reach a <code>Service</code> address over,
+        if this transport uses one for it.
+        @param addr   The network address of the Service as "ip:port"
+        @return The path of its Unix domain socket, or <code>null</code> if the
+                call goes over TCP, i.e. with <code>TCP</code> or when the host
+                is not this one.
+     */
+    Path socketPath(String addr) {
+        int port = this == UNIX ? localPort(addr) : -1;
+        return port < 0 ? null : socketPath(port);
+    }
+
+    /** Returns the port of a <code>Service</code> that calls to an address may
+        reach without going over TCP.
+        @param addr   The network address of the Service as "ip:port"
+        @return The port, or -1 if the call goes over TCP.
+     */
+    int inProcessPort(String addr) {
+        return this == IN_PROCESS || this == IN_PROCESS_COPY ? localPort(addr) : -1;
+    }
+
+    /** Returns the port of an address on this host.
+        @param addr   The network address as "ip:port"
+        @return The port, or -1 if the host is not this one.
+     */
+    private static int localPort(String addr) {
+        String[] splitAddr = addr.split(":", 2);
+        try {
+            InetAddress host = InetAddress.getByName(splitAddr[0]);
+            if (host.isLoopbackAddress() || host.isAnyLocalAddress()) {
+                return Integer.parseInt(splitAddr[1]);
+            }
+        } catch (UnknownHostException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            // left to TCP, which reports the bad address when a call is made
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,57 @@
+package remote;
+
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * client thread for clients connected to a server over its Unix domain socket, see Transport.UNIX.
+ * @param <T> general type for a service class
+ */
+public class UnixClientThread<T> extends Thread {
+    /**
+     * server socket channel bound to the socket file.
+     */
+    private ServerSocketChannel serverChannel;
+    /**
+     * remote service.
+     */
+    private Service<T> remoteService;
+
+    /**
+     * constructor of unix client thread.
+     * @param serverChannel server socket channel
+     * @param remoteService remote service
+     */
+    public UnixClientThread(ServerSocketChannel serverChannel, Service<T> remoteService) {
+        this.serverChannel = serverChannel;
+        this.remoteService = remoteService;
+    }
+
+    /**
+     * run client thread until the channel is closed by Service.stop.
+     */
+    @Override
+    public void run() {
+        while (serverChannel.isOpen() && remoteService.isServerRunning()) {
+            SocketChannel channel = null;
+            try {
+                channel = serverChannel.accept();
+                ServiceThread<T> serviceThread = new ServiceThread<>(
+                        new LeakySocket(channel, remoteService.isLossy(), remoteService.isDelayed(), 0),
+                        remoteService);
+                remoteService.runningServiceThread.add(serviceThread);
+                serviceThread.start();
+            } catch (Exception e) {
+                // a client that hung up before its stream header only loses its own call;
+                // once the channel is closed the loop ends
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (Exception ex) {
+                        // already closed
+                    }
+                }
+            }
+        }
+    }
+}
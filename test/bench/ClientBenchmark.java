@@ -0,0 +1,104 @@
+package test.bench;
+
+import raft.*;
+import remote.*;
+import java.util.Arrays;
+import java.util.Random;
+
+/** End-to-end latency of <code>NewCommand</code> for clients that start at
+    the wrong peer.
+
+    <p>
+    Starts an in-process cluster of <code>RaftPeer</code>s and submits commands
+    in three ways, each starting from a follower:
+    <ul>
+    <li>scanning peers in turn until one reports it is the leader, as
+        <code>test.raft.Controller.startCommit</code> does;</li>
+    <li>a new <code>RaftClient</code> per command, which follows the
+        follower's redirect to the leader;</li>
+    <li>one <code>RaftClient</code> reused for every command, which goes
+        straight to its cached leader.</li>
+    </ul>
+    <p>
+    Usage: <code>java test.bench.ClientBenchmark [peers] [commands]</code>
+ */
+public class ClientBenchmark {
+    public static void main(String[] args) throws Exception {
+        int numPeers = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int commands = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int basePort = new Random().nextInt(10000) + 20000;
+
+        RaftPeer[] peers = new RaftPeer[numPeers];
+        String[] addrs = new String[numPeers];
+        for (int i = 0; i < numPeers; i++) {
+            peers[i] = new RaftPeer(basePort + i, i, numPeers);
+            addrs[i] = "127.0.0.1:" + (basePort + i);
+        }
+        for (RaftPeer peer : peers) {
+            peer.Activate();
+        }
+        int leader = waitForLeader(peers);
+        // wait for a heartbeat round so every follower knows the leader
+        Thread.sleep(500);
+        System.out.println("leader is peer " + leader + " of " + numPeers);
+
+        // start every strategy at the peer after the leader, so a scan meets every follower first
+        String[] fromFollower = new String[numPeers];
+        for (int i = 0; i < numPeers; i++) {
+            fromFollower[i] = addrs[(leader + 1 + i) % numPeers];
+        }
+        RaftInterface[] stubs = new RaftInterface[numPeers];
+        for (int i = 0; i < numPeers; i++) {
+            stubs[i] = StubFactory.create(RaftInterface.class, fromFollower[i]);
+        }
+
+        long[] scan = new long[commands];
+        for (int c = 0; c < commands; c++) {
+            long t0 = System.nanoTime();
+            for (RaftInterface stub : stubs) {
+                if (stub.NewCommand(c).leader) break;
+            }
+            scan[c] = System.nanoTime() - t0;
+        }
+        report("scan peers in turn", scan);
+
+        long[] redirect = new long[commands];
+        for (int c = 0; c < commands; c++) {
+            RaftClient client = new RaftClient(fromFollower);
+            long t0 = System.nanoTime();
+            client.submit(c);
+            redirect[c] = System.nanoTime() - t0;
+        }
+        report("RaftClient, redirected", redirect);
+
+        long[] cached = new long[commands];
+        RaftClient client = new RaftClient(fromFollower);
+        client.submit(-1);
+        for (int c = 0; c < commands; c++) {
+            long t0 = System.nanoTime();
+            client.submit(c);
+            cached[c] = System.nanoTime() - t0;
+        }
+        report("RaftClient, cached", cached);
+        System.exit(0);
+    }
+
+    private static int waitForLeader(RaftPeer[] peers) throws InterruptedException {
+        while (true) {
+            for (int i = 0; i < peers.length; i++) {
+                if (peers[i].getCurrentRole() == RaftRole.LEADER) {
+                    return i;
+                }
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private static void report(String name, long[] latencies) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        double mean = Arrays.stream(sorted).average().orElse(0) / 1e6;
+        System.out.printf("%-24s mean %7.2f ms  p50 %7.2f ms  p99 %7.2f ms%n", name, mean,
+                sorted[sorted.length / 2] / 1e6, sorted[Math.min(sorted.length - 1, (int) (0.99 * sorted.length))] / 1e6);
+    }
+}
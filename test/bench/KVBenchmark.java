@@ -0,0 +1,161 @@
+package test.bench;
+
+import raft.*;
+import remote.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/** YCSB-style benchmark of the replicated key-value store.
+
+    <p>
+    Starts an in-process cluster of <code>RaftPeer</code>s, each with a
+    <code>KVServer</code>, loads a fixed set of records through the leader and
+    then runs the core YCSB read/update mixes with uniform and zipfian key
+    choice, reporting throughput and latency percentiles for each.
+    <p>
+    Usage: <code>java test.bench.KVBenchmark [peers] [clients] [seconds]</code>
+ */
+public class KVBenchmark {
+    private static final int RECORDS = 200;
+    private static final int VALUE_SIZE = 100;
+
+    /** A workload mix: the share of operations that are reads, the rest being updates. */
+    private static final String[] MIX_NAMES = { "A (50/50)", "B (95/5)", "C (100/0)" };
+    private static final double[] READ_SHARE = { 0.5, 0.95, 1.0 };
+
+    public static void main(String[] args) throws Exception {
+        int numPeers = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int numClients = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int basePort = new Random().nextInt(10000) + 20000;
+
+        RaftPeer[] peers = new RaftPeer[numPeers];
+        KVServer[] servers = new KVServer[numPeers];
+        for (int i = 0; i < numPeers; i++) {
+            peers[i] = new RaftPeer(basePort + i, i, numPeers);
+            servers[i] = new KVServer(peers[i], basePort + numPeers + i);
+        }
+        for (int i = 0; i < numPeers; i++) {
+            peers[i].Activate();
+            servers[i].start();
+        }
+
+        int leader = waitForLeader(peers);
+        String addr = "127.0.0.1:" + (basePort + numPeers + leader);
+        System.out.println("leader is peer " + leader + ", loading " + RECORDS + " records");
+
+        KVInterface loader = StubFactory.create(KVInterface.class, addr);
+        byte[] value = new byte[VALUE_SIZE];
+        for (int k = 0; k < RECORDS; k++) {
+            loader.Put(key(k), value);
+        }
+
+        for (int m = 0; m < MIX_NAMES.length; m++) {
+            for (boolean zipfian : new boolean[] { false, true }) {
+                run(addr, MIX_NAMES[m], READ_SHARE[m], zipfian, numClients, seconds);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static int waitForLeader(RaftPeer[] peers) throws InterruptedException {
+        while (true) {
+            for (int i = 0; i < peers.length; i++) {
+                if (peers[i].getCurrentRole() == RaftRole.LEADER) {
+                    return i;
+                }
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private static void run(String addr, String mix, double readShare, boolean zipfian,
+                            int numClients, int seconds) throws InterruptedException {
+        List<List<Long>> latencies = new ArrayList<>(numClients);
+        int[] errors = new int[numClients];
+        Thread[] clients = new Thread[numClients];
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int c = 0; c < numClients; c++) {
+            final int id = c;
+            latencies.add(new ArrayList<>());
+            clients[c] = new Thread(() -> {
+                KVInterface kv = StubFactory.create(KVInterface.class, addr);
+                Random rng = new Random(id);
+                Zipfian zipf = new Zipfian(RECORDS, 0.99, rng);
+                byte[] value = new byte[VALUE_SIZE];
+                while (System.nanoTime() < end) {
+                    String k = key(zipfian ? zipf.next() : rng.nextInt(RECORDS));
+                    long t0 = System.nanoTime();
+                    try {
+                        if (rng.nextDouble() < readShare) {
+                            kv.Get(k);
+                        } else {
+                            rng.nextBytes(value);
+                            kv.Put(k, value);
+                        }
+                        latencies.get(id).add(System.nanoTime() - t0);
+                    } catch (RemoteObjectException e) {
+                        errors[id]++;
+                    }
+                }
+            });
+            clients[c].start();
+        }
+        List<Long> all = new ArrayList<>();
+        int errorCount = 0;
+        for (int c = 0; c < numClients; c++) {
+            clients[c].join();
+            all.addAll(latencies.get(c));
+            errorCount += errors[c];
+        }
+        long[] sorted = all.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        System.out.printf("workload %-10s %-8s %8.1f ops/s  p50 %6.2f ms  p99 %6.2f ms  errors %d%n",
+                mix, zipfian ? "zipfian" : "uniform", sorted.length / (double) seconds,
+                percentile(sorted, 0.50), percentile(sorted, 0.99), errorCount);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1e6;
+    }
+
+    private static String key(int k) {
+        return String.format("user%06d", k);
+    }
+
+    /** Zipfian generator over [0, n), after Gray et al., "Quickly Generating Billion-Record
+        Synthetic Databases", as used by YCSB. */
+    private static class Zipfian {
+        private final int n;
+        private final double theta, alpha, zetan, eta;
+        private final Random rng;
+
+        Zipfian(int n, double theta, Random rng) {
+            this.n = n;
+            this.theta = theta;
+            this.rng = rng;
+            this.zetan = zeta(n, theta);
+            this.alpha = 1.0 / (1.0 - theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+        }
+
+        private static double zeta(int n, double theta) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        int next() {
+            double u = rng.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1.0) return 0;
+            if (uz < 1.0 + Math.pow(0.5, theta)) return 1;
+            return (int) (n * Math.pow(eta * u - eta + 1, alpha)) % n;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package test.bench;
+
+import raft.*;
+import remote.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/** Benchmark of a lagging follower catching up by snapshot transfer.
+
+    <p>
+    Starts three in-process <code>RaftPeer</code>s with write-ahead logs, each
+    with a state machine of a fixed size, and stops one follower while the
+    leader commits enough entries to snapshot and compact its log.  The
+    follower is then restarted under a steady load of small proposals, and
+    fetches the leader's snapshot from its <code>SnapshotSender</code>.
+    Reported are the transfer time and rate, commit latency before and during
+    the transfer, whether the leader kept its term, and whether the follower's
+    state matches the leader's.
+    <p>
+    With a cut-off time, the follower is stopped again that long into the
+    transfer and restarted 300 ms later, so it resumes from its partial file.
+    With a burst, that many more entries are committed once the transfer has
+    started; if they make the leader snapshot again, the follower abandons the
+    old snapshot for the new one, which is reported as superseded.
+    <p>
+    The leader also has a commit subscription whose listener never returns,
+    which must not keep the log from being compacted once it falls more than
+    <code>raft.maxSubscriptionLag</code> entries behind.
+    <p>
+    Usage: <code>java -Draft.logDir=DIR -Draft.snapshotInterval=2000
+    -Draft.segmentBytes=16384 -Draft.maxSubscriptionLag=4000
+    [-Draft.snapshotRate=BYTES] test.bench.SnapshotBenchmark [stateMb] [entries]
+    [cutoffMs] [burst]</code>
+ */
+public class SnapshotBenchmark {
+    private static final int NUM_PEERS = 3;
+    private static final int LOAD_BATCH = 500;
+    private static final int OUTAGE_MS = 300;
+
+    public static void main(String[] args) throws Exception {
+        String logDir = System.getProperty("raft.logDir");
+        if (logDir == null) {
+            System.out.println("set raft.logDir, see the class comment for usage");
+            System.exit(1);
+        }
+        int stateMb = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int entries = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int cutoffMs = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        int burst = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        int basePort = new Random().nextInt(10000) + 20000;
+
+        RaftPeer[] peers = new RaftPeer[NUM_PEERS];
+        FixedState[] states = new FixedState[NUM_PEERS];
+        for (int i = 0; i < NUM_PEERS; i++) {
+            peers[i] = new RaftPeer(basePort + i, i, NUM_PEERS);
+            states[i] = new FixedState(stateMb);
+            peers[i].setStateMachine(states[i]);
+        }
+        for (RaftPeer peer : peers) {
+            peer.Activate();
+        }
+        int l = waitForLeader(peers);
+        int f = (l + 1) % NUM_PEERS;
+        RaftPeer leader = peers[l];
+        RaftPeer follower = peers[f];
+
+        CountDownLatch unblock = new CountDownLatch(1);
+        CommitSubscription stuck = leader.subscribe(1, 16, committed -> {
+            try {
+                unblock.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        follower.Deactivate();
+        load(leader, entries);
+        while (leader.getLastApplied() < leader.getLastLog().getIndex()) {
+            Thread.sleep(10);
+        }
+        // let a snapshot written in the background finish and compact the log
+        Thread.sleep(500);
+        int snapshotIndex = leader.getSnapshotIndex();
+        Path snapshotFile = Paths.get(logDir, "peer-" + (basePort + l), "snapshot");
+        long snapshotBytes = Files.size(snapshotFile);
+        System.out.printf("leader %d: last %d, commit %d, log from %d, snapshot at %d (%d KB); follower %d: last %d%n",
+                l, leader.getLastLog().getIndex(), leader.getCommitIndex(), leader.firstLogIndex(),
+                snapshotIndex, snapshotBytes >> 10, f, follower.getLastLog().getIndex());
+        System.out.printf("stuck subscription: delivered %d, closed %b, overrun %b%n",
+                stuck.getDeliveredIndex(), stuck.isClosed(), stuck.isOverrun());
+        if (leader.firstLogIndex() <= follower.getLastLog().getIndex() + 1) {
+            System.out.println("the log was not compacted past the follower, so it needs no snapshot");
+            System.exit(1);
+        }
+
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        boolean[] stop = { false };
+        Thread proposer = new Thread(() -> propose(leader, latencies, stop));
+        proposer.start();
+        Thread.sleep(1000);
+        List<Long> before = new ArrayList<>(latencies);
+        latencies.clear();
+        int termBefore = leader.getCurrentTerm();
+
+        long start = System.nanoTime();
+        follower.Activate();
+        Path followerDir = Paths.get(logDir, "peer-" + (basePort + f));
+        if (burst > 0) {
+            while (partialBytes(followerDir) == 0) {
+                Thread.sleep(1);
+            }
+            load(leader, burst);
+        }
+        if (cutoffMs > 0) {
+            Thread.sleep(cutoffMs);
+            follower.Deactivate();
+            System.out.printf("follower cut off after %d ms with %d KB of the snapshot%n",
+                    cutoffMs, partialBytes(followerDir) >> 10);
+            Thread.sleep(OUTAGE_MS);
+            follower.Activate();
+        }
+        while (follower.getSnapshotIndex() < snapshotIndex || follower.getLastApplied() < snapshotIndex) {
+            Thread.sleep(5);
+        }
+        long installed = System.nanoTime();
+        while (follower.getCommitIndex() < leader.getCommitIndex() - 50) {
+            Thread.sleep(5);
+        }
+        long caughtUp = System.nanoTime();
+        List<Long> during = new ArrayList<>(latencies);
+        stop[0] = true;
+        proposer.join();
+
+        double seconds = (installed - start) / 1e9;
+        long installedBytes = Files.size(followerDir.resolve("snapshot"));
+        System.out.printf("snapshot at %d installed and restored after %.0f ms (%.1f MB/s, limit from raft.snapshotRate), caught up after %.0f ms%n",
+                follower.getSnapshotIndex(), seconds * 1000, installedBytes / seconds / (1 << 20),
+                (caughtUp - start) / 1e6);
+        if (follower.getSnapshotIndex() > snapshotIndex) {
+            System.out.printf("superseded: the leader snapshotted at %d during the transfer%n",
+                    follower.getSnapshotIndex());
+        }
+        System.out.println("commit latency before: " + summary(before) + "; during transfer: " + summary(during));
+        System.out.printf("leader term %d -> %d, still leader %b%n",
+                termBefore, leader.getCurrentTerm(), leader.getCurrentRole() == RaftRole.LEADER);
+
+        while (follower.getLastApplied() < leader.getLastApplied()) {
+            Thread.sleep(10);
+        }
+        System.out.printf("state hash leader %d, follower %d, applied %d/%d%n", states[l].hash(),
+                states[f].hash(), leader.getLastApplied(), follower.getLastApplied());
+        unblock.countDown();
+        System.exit(0);
+    }
+
+    private static int waitForLeader(RaftPeer[] peers) throws InterruptedException {
+        while (true) {
+            for (int i = 0; i < peers.length; i++) {
+                if (peers[i].getCurrentRole() == RaftRole.LEADER) {
+                    return i;
+                }
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    /** Appends <code>entries</code> commands in batches, waiting out busy replies. */
+    private static void load(RaftPeer leader, int entries) throws InterruptedException {
+        int[] batch = new int[LOAD_BATCH];
+        for (int appended = 0; appended < entries; ) {
+            try {
+                IndexRange range = leader.NewCommands(Arrays.copyOf(batch, Math.min(LOAD_BATCH, entries - appended)));
+                appended += range.size();
+                if (range.size() == 0) {
+                    Thread.sleep(5);
+                }
+            } catch (RemoteObjectException e) {
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    /** Proposes one command every 5 ms until stopped, recording how long each takes to commit. */
+    private static void propose(RaftPeer leader, List<Long> latencies, boolean[] stop) {
+        while (!stop[0]) {
+            try {
+                long t0 = System.nanoTime();
+                IndexRange range = leader.NewCommands(new int[] { 1 });
+                if (range.size() > 0) {
+                    while (leader.getCommitIndex() < range.last) {
+                        Thread.sleep(1);
+                    }
+                    latencies.add(System.nanoTime() - t0);
+                }
+                Thread.sleep(5);
+            } catch (RemoteObjectException | InterruptedException e) {
+                // busy or interrupted: the next proposal tries again
+            }
+        }
+    }
+
+    private static long partialBytes(Path peerDir) throws IOException {
+        long bytes = 0;
+        try (DirectoryStream<Path> partials = Files.newDirectoryStream(peerDir, "*.partial")) {
+            for (Path partial : partials) {
+                bytes = Files.size(partial);
+            }
+        }
+        return bytes;
+    }
+
+    private static String summary(List<Long> latencies) {
+        if (latencies.isEmpty()) return "none";
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        return String.format("n=%d p50 %.1f ms p99 %.1f ms", sorted.length,
+                sorted[sorted.length / 2] / 1e6, sorted[sorted.length * 99 / 100] / 1e6);
+    }
+
+    /** A state machine whose state is a fixed-size array that every entry changes, so that a
+        snapshot is as large as the state whatever the entries hold. */
+    private static class FixedState implements StateMachine {
+        private final byte[] state;
+        private long applied;
+
+        FixedState(int mb) {
+            state = new byte[mb << 20];
+        }
+
+        @Override
+        public synchronized void apply(RaftLog entry) {
+            applied++;
+            int offset = (int) ((entry.getIndex() * 7919L) % (state.length - 64));
+            for (int i = 0; i < 64; i++) {
+                state[offset + i] ^= (byte) (entry.getIndex() + i);
+            }
+        }
+
+        @Override
+        public synchronized byte[] snapshot() {
+            byte[] snapshot = Arrays.copyOf(state, state.length + 8);
+            ByteBuffer.wrap(snapshot, state.length, 8).putLong(applied);
+            return snapshot;
+        }
+
+        @Override
+        public synchronized void restore(byte[] snapshot) {
+            System.arraycopy(snapshot, 0, state, 0, state.length);
+            applied = ByteBuffer.wrap(snapshot, state.length, 8).getLong();
+        }
+
+        synchronized int hash() {
+            return Arrays.hashCode(state);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package test.bench;
+
+import raft.*;
+import remote.*;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/** Benchmark of what the per-record checksum of the write-ahead log costs on
+    the append path.
+
+    <p>
+    First times <code>CRC32C</code> alone over records of the sizes below.
+    Then starts a single <code>RaftPeer</code> with a write-ahead log, which
+    commits an entry as soon as it is on disk, and measures how fast entries
+    are appended and made durable: small entries through
+    <code>NewCommands</code> in batches, and values of each size through
+    <code>Put</code>s to a <code>KVServer</code> from several clients.  For
+    each it reports the time per entry and the share of it the checksum of
+    the record would take.  A client waits for each <code>Put</code> to
+    return, so with few clients their rate is set by the round trip of the
+    call rather than by the log.
+    <p>
+    Usage: <code>java -Draft.logDir=DIR test.bench.WalAppendBenchmark [clients]
+    [seconds]</code>
+ */
+public class WalAppendBenchmark {
+    /** Record sizes to checksum; 20 bytes is an entry of <code>NewCommands</code>. */
+    private static final int[] RECORD_SIZES = { 20, 128, 1024, 16384 };
+    /** Value sizes to <code>Put</code>. */
+    private static final int[] VALUE_SIZES = { 128, 1024, 16384 };
+    private static final int BATCH = 256;
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("raft.logDir") == null) {
+            System.out.println("set raft.logDir, see the class comment for usage");
+            System.exit(1);
+        }
+        int numClients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int basePort = new Random().nextInt(10000) + 20000;
+
+        double[] crcNanos = new double[RECORD_SIZES.length];
+        for (int i = 0; i < RECORD_SIZES.length; i++) {
+            crcNanos[i] = crcNanos(RECORD_SIZES[i]);
+            System.out.printf("CRC32C of a %5d B record: %8.1f ns (%.2f GB/s)%n", RECORD_SIZES[i],
+                    crcNanos[i], RECORD_SIZES[i] / crcNanos[i]);
+        }
+
+        RaftPeer peer = new RaftPeer(basePort, 0, 1);
+        KVServer server = new KVServer(peer, basePort + 1);
+        peer.Activate();
+        server.start();
+        while (peer.getCurrentRole() != RaftRole.LEADER) {
+            Thread.sleep(50);
+        }
+
+        long entries = commands(peer, seconds);
+        report("NewCommands, 20 B records", entries, seconds, crcNanos[0]);
+
+        String addr = "127.0.0.1:" + (basePort + 1);
+        for (int size : VALUE_SIZES) {
+            long puts = puts(addr, size, numClients, seconds);
+            // the record also holds the key and the command's header, which this leaves out
+            report(String.format("Put of %5d B from %d clients", size, numClients), puts, seconds,
+                    crcNanos(size));
+        }
+        System.exit(0);
+    }
+
+    /** Returns the mean time to checksum one record of <code>size</code> bytes, after warming up. */
+    private static double crcNanos(int size) {
+        byte[] record = new byte[size];
+        new Random(size).nextBytes(record);
+        CRC32C crc = new CRC32C();
+        long sink = 0;
+        int rounds = Math.max(100000, (1 << 30) / size);
+        for (int pass = 0; pass < 2; pass++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                crc.reset();
+                crc.update(record, 0, size);
+                sink += crc.getValue();
+            }
+            long elapsed = System.nanoTime() - t0;
+            if (pass == 1) {
+                // keeps the loop from being optimized away
+                if (sink == 42) System.out.print("");
+                return elapsed / (double) rounds;
+            }
+        }
+        throw new AssertionError();
+    }
+
+    /** Appends batches of commands for <code>seconds</code>, then waits until all are durable.
+        @return The number of entries appended. */
+    private static long commands(RaftPeer peer, int seconds) throws InterruptedException {
+        int[] batch = new int[BATCH];
+        long appended = 0;
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        while (System.nanoTime() < end) {
+            try {
+                IndexRange range = peer.NewCommands(batch);
+                appended += range.size();
+                if (range.size() == 0) {
+                    Thread.sleep(1);
+                }
+            } catch (RemoteObjectException e) {
+                Thread.sleep(1);
+            }
+        }
+        while (peer.getCommitIndex() < peer.getLastLog().getIndex()) {
+            Thread.sleep(1);
+        }
+        return appended;
+    }
+
+    /** Puts values of <code>size</code> bytes from <code>numClients</code> clients for
+        <code>seconds</code>; a <code>Put</code> returns once its entry is durable.
+        @return The number of <code>Put</code>s that completed. */
+    private static long puts(String addr, int size, int numClients, int seconds) throws InterruptedException {
+        AtomicLong done = new AtomicLong();
+        Thread[] clients = new Thread[numClients];
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int c = 0; c < numClients; c++) {
+            final int id = c;
+            clients[c] = new Thread(() -> {
+                KVInterface kv = StubFactory.create(KVInterface.class, addr);
+                byte[] value = new byte[size];
+                new Random(id).nextBytes(value);
+                for (int n = 0; System.nanoTime() < end; n++) {
+                    try {
+                        kv.Put("client" + id + "-" + (n % 100), value);
+                        done.incrementAndGet();
+                    } catch (RemoteObjectException e) {
+                        // busy: the next put tries again
+                    }
+                }
+            });
+            clients[c].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        return done.get();
+    }
+
+    private static void report(String what, long entries, int seconds, double crcNanos) {
+        double perEntry = seconds * 1e9 / entries;
+        System.out.printf("%-32s %10.0f entries/s  %9.1f ns/entry  CRC32C %.1f ns, %.2f%%%n",
+                what, entries / (double) seconds, perEntry, crcNanos, 100 * crcNanos / perEntry);
+    }
+}
@@ -0,0 +1,371 @@
+package test.bench;
+
+import raft.*;
+import remote.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/** Check that a peer recovers its write-ahead log after a crash.
+
+    <p>
+    Each case builds the log of a single-peer group through
+    <code>NewCommands</code>, over two runs so that the log holds entries of
+    two terms, then damages the files the way a crash might and opens the
+    log again in a new <code>RaftPeer</code> on the same port.  The reopened
+    peer's last index, term, vote and entries are compared with what was
+    written:
+    <ul>
+    <li>a clean restart keeps everything;
+    <li>garbage appended to the tail segment, as by a torn write, is cut off;
+    <li>a sealed segment that matches its checkpoint is trusted without being
+        read, so damage inside it does not shorten the log, but reading the
+        damaged entry fails its checksum;
+    <li>the same damage with the checkpoint gone, or a bit flipped in the tail
+        segment, is found on open and cuts the log back to the entry before it;
+    <li>a segment missing in the middle drops every segment after it;
+    <li>a snapshot ahead of what is left of the log resets the log to start
+        right after the snapshot;
+    <li>a leader of a later term that replaces several entries of the
+        reopened log cuts it back in memory and on disk alike.
+    </ul>
+    <p>
+    Usage: <code>java -Draft.logDir=DIR -Draft.segmentBytes=4096
+    -Draft.snapshotInterval=500 test.bench.WalRecoveryCheck</code>
+ */
+public class WalRecoveryCheck {
+    private static final int FIRST_RUN = 1200;
+    private static final int SECOND_RUN = 800;
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static Path logDir;
+    private static int nextPort;
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        String dir = System.getProperty("raft.logDir");
+        if (dir == null) {
+            System.out.println("set raft.logDir, see the class comment for usage");
+            System.exit(1);
+        }
+        logDir = Paths.get(dir);
+        nextPort = new Random().nextInt(10000) + 20000;
+
+        cleanRestart();
+        tornTail();
+        trustedSealedSegment();
+        sealedSegmentWithoutCheckpoint();
+        tailBitFlip();
+        gap();
+        snapshotAheadOfLog();
+        conflictingSuffix();
+
+        System.out.println(failures == 0 ? "all checks passed" : failures + " checks failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void cleanRestart() throws Exception {
+        Written log = build(false);
+        RaftPeer peer = new RaftPeer(log.port, 0, 1);
+        expectLog("clean restart", peer, log, log.terms.length - 1);
+    }
+
+    private static void tornTail() throws Exception {
+        Written log = build(false);
+        Path tail = last(segments(log.port));
+        long size = Files.size(tail);
+        byte[] garbage = new byte[5000];
+        new Random(1).nextBytes(garbage);
+        try (OutputStream out = Files.newOutputStream(tail, StandardOpenOption.APPEND)) {
+            out.write(garbage);
+        }
+        RaftPeer peer = new RaftPeer(log.port, 0, 1);
+        expectLog("torn tail", peer, log, log.terms.length - 1);
+        check("torn tail", Files.size(tail) == size, "tail segment cut back to " + size + " bytes, is " + Files.size(tail));
+    }
+
+    private static void trustedSealedSegment() throws Exception {
+        Written log = build(false);
+        List<Path> segments = segments(log.port);
+        int damaged = flipBit(segments, 1, 10, log);
+        RaftPeer peer = new RaftPeer(log.port, 0, 1);
+        // a segment read on open would be cut back to the record before the damaged one
+        check("trusted sealed segment", peer.getLastLog().getIndex() == log.terms.length - 1,
+                "last index " + (log.terms.length - 1) + " kept despite damage at " + damaged
+                        + ", is " + peer.getLastLog().getIndex());
+        String failure = null;
+        try {
+            peer.getLogs().get(damaged - 1);
+        } catch (UncheckedIOException e) {
+            failure = e.getMessage();
+        }
+        check("trusted sealed segment", failure != null, "reading entry " + damaged + " fails: " + failure);
+        check("trusted sealed segment", peer.getLogs().get(damaged - 2).getIndex() == damaged - 1
+                        && peer.getLogs().get(damaged).getIndex() == damaged + 1,
+                "the entries on either side still read back");
+    }
+
+    private static void sealedSegmentWithoutCheckpoint() throws Exception {
+        Written log = build(false);
+        List<Path> segments = segments(log.port);
+        int damaged = flipBit(segments, 1, 10, log);
+        Files.delete(peerDir(log.port).resolve("checkpoint"));
+        RaftPeer peer = new RaftPeer(log.port, 0, 1);
+        expectLog("sealed segment without checkpoint", peer, log, damaged - 1);
+    }
+
+    private static void tailBitFlip() throws Exception {
+        Written log = build(false);
+        List<Path> segments = segments(log.port);
+        int damaged = flipBit(segments, segments.size() - 1, 5, log);
+        RaftPeer peer = new RaftPeer(log.port, 0, 1);
+        expectLog("tail bit flip", peer, log, damaged - 1);
+    }
+
+    private static void gap() throws Exception {
+        Written log = build(false);
+        List<Path> segments = segments(log.port);
+        Files.delete(segments.get(2));
+        RaftPeer peer = new RaftPeer(log.port, 0, 1);
+        int expectedLast = firstIndexOf(segments.get(2)) - 1;
+        expectLog("gap", peer, log, expectedLast);
+        check("gap", segments(log.port).size() == 2, "segments after the gap deleted, "
+                + segments(log.port).size() + " of " + segments.size() + " left");
+    }
+
+    private static void snapshotAheadOfLog() throws Exception {
+        Written log = build(true);
+        int snapshotIndex = log.snapshotIndex;
+        check("snapshot ahead of log", snapshotIndex > 0, "a snapshot was saved, see raft.snapshotInterval");
+        if (snapshotIndex == 0) return;
+        for (Path segment : segments(log.port)) {
+            Files.delete(segment);
+        }
+        Files.deleteIfExists(peerDir(log.port).resolve("checkpoint"));
+        RaftPeer peer = new RaftPeer(log.port, 0, 1);
+        Counter restored = new Counter();
+        peer.setStateMachine(restored);
+        check("snapshot ahead of log", peer.getLastLog().getIndex() == snapshotIndex
+                        && peer.firstLogIndex() == snapshotIndex + 1 && peer.getCommitIndex() == snapshotIndex,
+                "log reset to start after the snapshot at " + snapshotIndex + ": last "
+                        + peer.getLastLog().getIndex() + ", first " + peer.firstLogIndex()
+                        + ", commit " + peer.getCommitIndex());
+        check("snapshot ahead of log", restored.applied() == snapshotIndex,
+                "state restored to " + snapshotIndex + ", is " + restored.applied());
+        check("snapshot ahead of log", peer.getCurrentTerm() == log.term && Integer.valueOf(0).equals(peer.getVotedFor()),
+                "term " + log.term + " and vote 0 kept, are " + peer.getCurrentTerm() + " and " + peer.getVotedFor());
+    }
+
+    private static void conflictingSuffix() throws Exception {
+        Written log = build(false);
+        int last = log.terms.length - 1;
+        int prev = last - 5;
+        int newTerm = log.term + 1;
+        List<RaftLog> entries = new ArrayList<>();
+        entries.add(new RaftLog(0, newTerm, prev + 1));
+        entries.add(new RaftLog(0, newTerm, prev + 2));
+        RaftPeer peer = new RaftPeer(log.port, 0, 1);
+        String failure = null;
+        try {
+            AppendEntriesResp resp = peer.AppendEntries(newTerm, 1, prev, log.terms[prev], entries, 0);
+            if (!resp.isSuccess()) {
+                failure = "rejected";
+            }
+        } catch (RemoteObjectException | RuntimeException e) {
+            failure = e.toString();
+        }
+        check("conflicting suffix", failure == null, "5 entries replaced by 2 of term " + newTerm + ": "
+                + (failure == null ? "accepted" : failure));
+        log.terms[prev + 1] = newTerm;
+        log.terms[prev + 2] = newTerm;
+        expectSuffix("conflicting suffix", peer, log, prev + 2);
+        expectSuffix("conflicting suffix, reopened", new RaftPeer(log.port, 0, 1), log, prev + 2);
+    }
+
+    /** Checks the last index, and the index and term of the entries just before it. */
+    private static void expectSuffix(String name, RaftPeer peer, Written log, int expectedLast) {
+        List<RaftLog> entries = peer.getLogs();
+        check(name, entries.size() == expectedLast && peer.getLastLog().getIndex() == expectedLast,
+                "last index " + expectedLast + ", is " + peer.getLastLog().getIndex() + " with "
+                        + entries.size() + " entries");
+        int wrong = 0;
+        for (int i = Math.max(1, expectedLast - 10); i <= Math.min(expectedLast, entries.size()); i++) {
+            RaftLog entry = entries.get(i - 1);
+            if (entry.getIndex() != i || entry.getTerm() != log.terms[i]) {
+                wrong++;
+            }
+        }
+        check(name, wrong == 0, "last entries read back with their index and term, " + wrong + " wrong");
+    }
+
+    /** What was written to the log of one peer. */
+    private static class Written {
+        int port;
+        // term of each entry, by index; terms[0] is unused
+        int[] terms;
+        int term;
+        int snapshotIndex;
+    }
+
+    /** Writes FIRST_RUN entries, restarts the peer so that it is elected in a new term, then
+        writes SECOND_RUN more, with a state machine attached if snapshots are to be taken. */
+    private static Written build(boolean snapshots) throws Exception {
+        Written log = new Written();
+        log.port = nextPort++;
+        log.terms = new int[FIRST_RUN + SECOND_RUN + 1];
+        deleteRecursively(peerDir(log.port));
+        RaftPeer first = run(log, 1, FIRST_RUN, snapshots ? new Counter() : null);
+        RaftPeer second = run(log, FIRST_RUN + 1, SECOND_RUN, snapshots ? new Counter() : null);
+        log.term = second.getCurrentTerm();
+        if (snapshots) {
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (second.getSnapshotIndex() < log.terms.length - 1 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            log.snapshotIndex = second.getSnapshotIndex();
+        }
+        check("build", first.getCurrentTerm() < log.term, "second run in a later term than the first");
+        int count = segments(log.port).size();
+        // a snapshot compacts the log, and only the snapshot case takes one
+        if (!snapshots && count < 4) {
+            System.out.println("the log has " + count + " segments, lower raft.segmentBytes");
+            System.exit(1);
+        }
+        return log;
+    }
+
+    private static RaftPeer run(Written log, int from, int count, StateMachine stateMachine) throws Exception {
+        RaftPeer peer = new RaftPeer(log.port, 0, 1);
+        if (stateMachine != null) {
+            peer.setStateMachine(stateMachine);
+        }
+        peer.Activate();
+        while (peer.getCurrentRole() != RaftRole.LEADER) {
+            Thread.sleep(10);
+        }
+        int[] commands = new int[100];
+        for (int next = from; next < from + count; ) {
+            try {
+                IndexRange range = peer.NewCommands(commands);
+                for (int i = range.first; i <= range.last; i++) {
+                    log.terms[i] = range.term;
+                }
+                next += range.size();
+            } catch (RemoteObjectException e) {
+                Thread.sleep(5);
+            }
+        }
+        while (peer.getCommitIndex() < from + count - 1) {
+            Thread.sleep(5);
+        }
+        // a committed entry of a single peer is durable; give the flusher time for its checkpoint
+        Thread.sleep(200);
+        peer.Deactivate();
+        return peer;
+    }
+
+    private static void expectLog(String name, RaftPeer peer, Written log, int expectedLast) {
+        check(name, peer.getLastLog().getIndex() == expectedLast,
+                "last index " + expectedLast + ", is " + peer.getLastLog().getIndex());
+        check(name, peer.getCurrentTerm() == log.term && Integer.valueOf(0).equals(peer.getVotedFor()),
+                "term " + log.term + " and vote 0, are " + peer.getCurrentTerm() + " and " + peer.getVotedFor());
+        List<RaftLog> entries = peer.getLogs();
+        int wrong = 0;
+        for (int i = peer.firstLogIndex(); i <= Math.min(expectedLast, entries.size()); i++) {
+            RaftLog entry = entries.get(i - 1);
+            if (entry.getIndex() != i || entry.getTerm() != log.terms[i]) {
+                wrong++;
+            }
+        }
+        check(name, wrong == 0, "entries read back with their index and term, " + wrong + " wrong");
+    }
+
+    private static void check(String name, boolean ok, String what) {
+        System.out.println((ok ? "ok   " : "FAIL ") + name + ": " + what);
+        if (!ok) {
+            failures++;
+        }
+    }
+
+    /** Flips one bit in the middle of a record of a segment; every record in these logs has the
+        same size, as entries made by NewCommands carry no data.
+        @return the index of the damaged entry */
+    private static int flipBit(List<Path> segments, int segment, int record, Written log) throws IOException {
+        Path path = segments.get(segment);
+        int first = firstIndexOf(path);
+        int next = segment + 1 < segments.size() ? firstIndexOf(segments.get(segment + 1)) : log.terms.length;
+        int count = next - first;
+        long recordBytes = Files.size(path) / count;
+        long offset = record * recordBytes + recordBytes / 2;
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[(int) offset] ^= 0x10;
+        Files.write(path, bytes);
+        return first + record;
+    }
+
+    private static Path peerDir(int port) {
+        return logDir.resolve("peer-" + port);
+    }
+
+    private static List<Path> segments(int port) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> found = Files.newDirectoryStream(peerDir(port), "*" + SEGMENT_SUFFIX)) {
+            found.forEach(segments::add);
+        }
+        // names are zero-padded first indexes, so name order is log order
+        segments.sort(null);
+        return segments;
+    }
+
+    private static Path last(List<Path> segments) {
+        return segments.get(segments.size() - 1);
+    }
+
+    private static int firstIndexOf(Path segment) {
+        return Integer.parseInt(segment.getFileName().toString().replace(SEGMENT_SUFFIX, ""));
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /** A state machine that only counts the entries applied to it. */
+    private static class Counter implements StateMachine {
+        private long applied;
+
+        @Override
+        public synchronized void apply(RaftLog entry) {
+            applied++;
+        }
+
+        @Override
+        public synchronized byte[] snapshot() {
+            return ByteBuffer.allocate(8).putLong(applied).array();
+        }
+
+        @Override
+        public synchronized void restore(byte[] state) {
+            applied = ByteBuffer.wrap(state).getLong();
+        }
+
+        synchronized long applied() {
+            return applied;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+/** Local benchmarks and checks for services built on the lab 2 Raft implementation.
+
+    <p>
+    Benchmarks run an in-process cluster of Raft peers, in the same way as
+    <code>test.raft.Controller</code>, and print their results to standard output.
+    Checks do the same and exit with a non-zero status if any of them fails.
+    They are not part of the conformance tests.
+ */
+package test.bench;